@@ -0,0 +1,153 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+    Approximate query rate per client address in fixed memory.
+
+    Counts are kept in count-min sketches, one per time bucket, and the rate
+    is the sum over the buckets of the sliding window. When a bucket is
+    reused for a new period, the finished one is folded into a baseline
+    sketch holding an exponentially weighted average count per bucket,
+    which gives a learned normal rate of every client.
+
+    Rows are indexed by double hashing with the two independent halves of a
+    128-bit murmur3 hash of the address bytes.
+
+    All counters are atomic arrays, updates never take a lock. A rotating
+    bucket is marked, zeroed and only then published with its new epoch,
+    so readers never add the counts of a previous period. Increments
+    racing with a bucket rotation may be lost, which only makes the
+    estimate a bit lower.
+*/
+@Singleton
+public class ClientRateTracker {
+    private static final int  DEPTH           = 4;
+    private static final int  WIDTH           = 1 << 14;
+    private static final int  BUCKETS         = 6;
+    private static final long BUCKET_NANOS    = TimeUnit.SECONDS.toNanos(10);
+    private static final double WINDOW_SECONDS = BUCKETS * BUCKET_NANOS / 1e9;
+    private static final double BUCKET_SECONDS = BUCKET_NANOS / 1e9;
+    // Baseline is kept in 1/16 of a query, average over ~64 buckets
+    private static final int  BASELINE_SCALE  = 16;
+    private static final int  BASELINE_SHIFT  = 6;
+    // Learned baseline is not used for clients slower than this (queries/s)
+    private static final double MIN_BASELINE_RATE = 5.0;
+    // Epoch of a bucket while it is being zeroed, never within a window
+    private static final long ROTATING = Long.MIN_VALUE;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final AtomicIntegerArray[] buckets = new AtomicIntegerArray[BUCKETS];
+    private final AtomicLongArray epochs = new AtomicLongArray(BUCKETS);
+    private final AtomicIntegerArray baseline = new AtomicIntegerArray(DEPTH * WIDTH);
+    private final long startNanos = System.nanoTime();
+
+    public ClientRateTracker() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+            epochs.set(i, -1);
+        }
+    }
+
+    /**
+     * Counts a query of the client.
+     */
+    public void add(final ByteString address) {
+        final long epoch = currentEpoch();
+        final AtomicIntegerArray bucket = bucketFor(epoch);
+        final HashCode hash = hash(address);
+        final long h1 = hash.asLong();
+        final long h2 = secondHalf(hash);
+        for (int d = 0; d < DEPTH; d++) {
+            bucket.incrementAndGet(index(h1, h2, d));
+        }
+    }
+
+    /**
+     * Returns the estimated rate (queries/s) of the client if it is above
+     * the threshold or {@code multiplier} times its learned baseline,
+     * otherwise -1. Non positive threshold or multiplier disables the check.
+     */
+    public double anomalousRate(final ByteString address,
+                                final double threshold,
+                                final double multiplier) {
+        final long epoch = currentEpoch();
+        final HashCode hash = hash(address);
+        final long h1 = hash.asLong();
+        final long h2 = secondHalf(hash);
+        long count = Long.MAX_VALUE;
+        long base  = Long.MAX_VALUE;
+        for (int d = 0; d < DEPTH; d++) {
+            final int index = index(h1, h2, d);
+            long sum = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                final long bucketEpoch = epochs.get(b);
+                if (bucketEpoch > epoch - BUCKETS && bucketEpoch <= epoch) {
+                    sum += buckets[b].get(index);
+                }
+            }
+            count = Math.min(count, sum);
+            base  = Math.min(base, baseline.get(index));
+        }
+        final double rate = count / WINDOW_SECONDS;
+        if (threshold > 0 && rate > threshold) {
+            return rate;
+        }
+        final double baseRate = base / (double) BASELINE_SCALE / BUCKET_SECONDS;
+        if (multiplier > 0 && rate >= MIN_BASELINE_RATE && rate > multiplier * baseRate) {
+            return rate;
+        }
+        return -1;
+    }
+
+    private long currentEpoch() {
+        return (System.nanoTime() - startNanos) / BUCKET_NANOS;
+    }
+
+    private AtomicIntegerArray bucketFor(final long epoch) {
+        final int slot = (int) (epoch % BUCKETS);
+        final AtomicIntegerArray bucket = buckets[slot];
+        final long slotEpoch = epochs.get(slot);
+        if (slotEpoch != ROTATING && slotEpoch < epoch && epochs.compareAndSet(slot, slotEpoch, ROTATING)) {
+            // This thread owns the rotation, the epoch is published once the bucket is zeroed
+            final int previous = (int) ((epoch + BUCKETS - 1) % BUCKETS);
+            foldIntoBaseline(buckets[previous], epochs.get(previous) == epoch - 1);
+            for (int i = 0; i < DEPTH * WIDTH; i++) {
+                bucket.set(i, 0);
+            }
+            epochs.set(slot, epoch);
+        }
+        return bucket;
+    }
+
+    private void foldIntoBaseline(final AtomicIntegerArray finished, final boolean valid) {
+        for (int i = 0; i < DEPTH * WIDTH; i++) {
+            final int count = valid ? finished.get(i) * BASELINE_SCALE : 0;
+            final int avg   = baseline.get(i);
+            baseline.set(i, avg + ((count - avg) >> BASELINE_SHIFT));
+        }
+    }
+
+    private static HashCode hash(final ByteString address) {
+        return HASH.hashBytes(address.toByteArray());
+    }
+
+    private static long secondHalf(final HashCode hash) {
+        final byte[] b = hash.asBytes();
+        return Longs.fromBytes(b[15], b[14], b[13], b[12], b[11], b[10], b[9], b[8]);
+    }
+
+    private static int index(final long h1, final long h2, final int row) {
+        // Double hashing with the independent halves: h1 + row * h2
+        return row * WIDTH + (int) ((h1 + row * (h2 | 1)) & (WIDTH - 1));
+    }
+}
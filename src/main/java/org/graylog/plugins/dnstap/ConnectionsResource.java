@@ -0,0 +1,50 @@
+package org.graylog.plugins.dnstap;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.graylog2.plugin.rest.PluginRestResource;
+import org.graylog2.shared.rest.resources.RestResource;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.List;
+
+@RequiresAuthentication
+@Api(value = "Dnstap/Connections", description = "Live fstrm connections")
+@Path("/connections")
+@Produces(MediaType.APPLICATION_JSON)
+public class ConnectionsResource extends RestResource implements PluginRestResource {
+    private final FrameRecorderRegistry recorders;
+
+    @Inject
+    public ConnectionsResource(final FrameRecorderRegistry recorders) {
+        this.recorders = recorders;
+    }
+
+    @GET
+    @RequiresPermissions(DnstapPermissions.CONNECTIONS_READ)
+    @ApiOperation(value = "Live connections with their recently received frames")
+    public List<FrameRecorder.Snapshot> list() {
+        return recorders.snapshots();
+    }
+
+    @GET
+    @Path("/{id}")
+    @RequiresPermissions(DnstapPermissions.CONNECTIONS_READ)
+    @ApiOperation(value = "Recently received frames of a connection")
+    public FrameRecorder.Snapshot get(@ApiParam(name = "id", required = true) @PathParam("id") int id) {
+        final FrameRecorder recorder = recorders.get(id);
+        if (recorder == null) {
+            throw new NotFoundException("No connection with id " + id);
+        }
+        return recorder.snapshot();
+    }
+}
@@ -0,0 +1,40 @@
+package org.graylog.plugins.dnstap;
+
+/**
+ * Objects reused by all decodes on one thread: the parsed DNS packet with
+ * its answer list and scratch arrays, the frame handed to the field
+ * profile and the short message builder. Nothing in it may outlive the
+ * decode of one raw message.
+ */
+final class DecodeContext {
+    private static final ThreadLocal<DecodeContext> CONTEXTS = ThreadLocal.withInitial(DecodeContext::new);
+    // Do not keep the memory of an exceptionally large message
+    private static final int MAX_BUILDER_CAPACITY = 64 * 1024;
+
+    final Helper.DNSMessage  dns   = new Helper.DNSMessage();
+    final FieldProfile.Frame frame = new FieldProfile.Frame();
+    private StringBuilder shortMessage = new StringBuilder(256);
+
+    private DecodeContext() {
+    }
+
+    static DecodeContext get() {
+        return CONTEXTS.get();
+    }
+
+    /**
+     * Drops the references to the decoded frame, called when a decode is done.
+     */
+    void release() {
+        dns.clear();
+        frame.clear();
+    }
+
+    StringBuilder shortMessage() {
+        if (shortMessage.capacity() > MAX_BUILDER_CAPACITY) {
+            shortMessage = new StringBuilder(256);
+        }
+        shortMessage.setLength(0);
+        return shortMessage;
+    }
+}
@@ -1,15 +1,24 @@
 package org.graylog.plugins.dnstap;
 
+import com.google.common.base.Joiner;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
 import com.google.inject.assistedinject.Assisted;
 import org.graylog2.plugin.Message;
+import org.graylog2.plugin.ResolvableInetSocketAddress;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
 import org.graylog2.plugin.configuration.fields.BooleanField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
+import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.inputs.annotations.Codec;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.inputs.codecs.AbstractCodec;
+import org.graylog2.plugin.inputs.codecs.MultiMessageCodec;
 import org.graylog2.plugin.journal.RawMessage;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -18,10 +27,26 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.graylog.plugins.dnstap.protos.DnstapOuterClass;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
 // TODO: http://vlkan.com/blog/post/2015/11/27/maven-protobuf/
 
 
@@ -29,23 +54,113 @@ import org.graylog.plugins.dnstap.Helper;
 
 
 @Codec(name = "dnstap", displayName = "Dnstap")
-public class DnstapCodec extends AbstractCodec {
+public class DnstapCodec extends AbstractCodec implements MultiMessageCodec {
     private static final Logger Log = LoggerFactory.getLogger(DnstapCodec.class);
     public static final String CK_DO_NOT_PUT_FULL_MESSAGE = "do_not_put_full_message";
+    public static final String CK_ANSWER_MESSAGES = "answer_messages";
+    public static final String CK_ANSWER_DEDUP_WINDOW = "answer_dedup_window";
+    public static final String CK_PDNS_MEMORY = "pdns_memory";
+    public static final String CK_PDNS_UPDATE_INTERVAL = "pdns_update_interval";
+    public static final String CK_CLIENT_RATE_THRESHOLD = "client_rate_threshold";
+    public static final String CK_CLIENT_RATE_MULTIPLIER = "client_rate_multiplier";
+    public static final String CK_QNAME_SCORING = "qname_scoring";
+    public static final String CK_STORM_THRESHOLD = "storm_threshold";
+    public static final String CK_STORM_WINDOW = "storm_window";
+    public static final String CK_STORM_SUMMARY_INTERVAL = "storm_summary_interval";
+    public static final String CK_GEOIP_DATABASE = "geoip_database";
+    public static final String CK_ASN_DATABASE = "asn_database";
+    public static final String CK_GEOIP_CACHE_SIZE = "geoip_cache_size";
+    public static final String CK_QUERY_SUBNET_MODE = "query_subnet_mode";
+    public static final String CK_QUERY_SUBNET_IPV6_PREFIX = "query_subnet_ipv6_prefix";
+    public static final String CK_PSEUDONYM_KEY = "pseudonym_key";
+    public static final String CK_ANSWER_TYPES = "answer_types";
+    public static final String CK_CACHE_HIT_THRESHOLD = "cache_hit_threshold";
+    public static final String CK_UPSTREAM_LATENCY = "upstream_latency";
+    public static final String CK_COMPACT_OUTPUT = "compact_output";
+    public static final String CK_DISABLED_FIELDS = "disabled_fields";
+    public static final String CK_FIELD_PROFILE = "field_profile";
+    public static final String CK_CAPTURE_THRESHOLD = "capture_threshold";
+    public static final String CK_CAPTURE_RCODES = "capture_rcodes";
+    public static final String CK_CAPTURE_PROFILE = "capture_profile";
 
-    private final boolean withoutFullMessage;
+    static final int DEFAULT_ANSWER_DEDUP_WINDOW = 86400;
+    static final int DEFAULT_PDNS_MEMORY = 64;
+    static final int DEFAULT_PDNS_UPDATE_INTERVAL = 3600;
+    static final int DEFAULT_STORM_WINDOW = 10;
+    static final int DEFAULT_STORM_SUMMARY_INTERVAL = 60;
+    static final int DEFAULT_GEOIP_CACHE_SIZE = 100000;
+    static final String QUERY_SUBNET_DISABLED = "DISABLED";
+
+    private final DnstapCodecSettings settings;
+    private final DnstapCodecMetrics metrics;
+    private final ParseErrorReporter errorReporter;
+    private final DnstapIdentityCache identities;
+    private final ClientRateTracker clientRates;
+    private final SubdomainCardinality subdomains;
+    private final ResolverQueryTracker resolverQueries;
+    private final UpstreamLatencyTracker upstreamLatency;
 
     @Inject
-    public DnstapCodec(@Assisted Configuration configuration) {
+    public DnstapCodec(@Assisted Configuration configuration,
+                       DnstapCodecSettings.Registry settings,
+                       DnstapCodecMetrics metrics,
+                       ParseErrorReporter errorReporter,
+                       DnstapIdentityCache identities,
+                       ClientRateTracker clientRates,
+                       SubdomainCardinality subdomains,
+                       ResolverQueryTracker resolverQueries,
+                       UpstreamLatencyTracker upstreamLatency) {
         super(configuration);
-        this.withoutFullMessage = configuration.getBoolean(CK_DO_NOT_PUT_FULL_MESSAGE);
+        this.settings           = settings.get(configuration);
+        this.metrics            = metrics;
+        this.errorReporter      = errorReporter;
+        this.identities         = identities;
+        this.clientRates        = clientRates;
+        this.subdomains         = subdomains;
+        this.resolverQueries    = resolverQueries;
+        this.upstreamLatency    = this.settings.upstreamLatency ? upstreamLatency : null;
     }
 
     @Nullable
     @Override
     public Message decode(@Nonnull final RawMessage rawMessage){
         Log.trace("Received raw message {}", rawMessage);
-        return getMessage(rawMessage);
+        try {
+            return getMessage(rawMessage);
+        }
+        finally {
+            DecodeContext.get().release();
+        }
+    }
+
+    @Nullable
+    @Override
+    public Collection<Message> decodeMessages(@Nonnull final RawMessage rawMessage) {
+        final List<Message> result;
+        if (!settings.answerMessages) {
+            final Message msg = decode(rawMessage);
+            result = (msg != null) ? Collections.singletonList(msg) : null;
+        }
+        else {
+            Log.trace("Received raw message {}", rawMessage);
+            final long startNanos = System.nanoTime();
+            final DnstapOuterClass.Dnstap dnstap = getDnstap(rawMessage);
+            if (dnstap == null) {
+                return null;
+            }
+            final DnstapIdentityCache.Identity identity = identities.resolve(dnstap);
+            try {
+                result = parseAnswerMessages(dnstap.getMessage(), identity, rawMessage);
+            }
+            finally {
+                DecodeContext.get().release();
+            }
+            identity.decoded(System.nanoTime() - startNanos);
+        }
+        if (upstreamLatency != null || settings.stormDetector != null) {
+            return addSummaries(result, rawMessage);
+        }
+        return result;
     }
 
     @FactoryClass
@@ -72,6 +187,198 @@ public class DnstapCodec extends AbstractCodec {
                 false,
                 "Do not put full message with pretty print of DNS packet"
             ));
+            cr.addField( new BooleanField(
+                CK_ANSWER_MESSAGES,
+                "Message per answer record",
+                false,
+                "Emit a separate message for every answer record of a response instead of one message per frame"
+            ));
+            cr.addField( new NumberField(
+                CK_ANSWER_DEDUP_WINDOW,
+                "Answer deduplication window",
+                DEFAULT_ANSWER_DEDUP_WINDOW,
+                "Seconds after the last sighting when an answer record (name, type, data) is forgotten and emitted as new again, 0 to disable deduplication",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_PDNS_MEMORY,
+                "Answer deduplication memory (MB)",
+                DEFAULT_PDNS_MEMORY,
+                "Off-heap memory budget of the passive DNS store, the least recently seen records are evicted when it is full",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_PDNS_UPDATE_INTERVAL,
+                "Answer update interval",
+                DEFAULT_PDNS_UPDATE_INTERVAL,
+                "Minimal seconds between last-seen/count updates of an already emitted answer record, 0 to disable updates",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_CLIENT_RATE_THRESHOLD,
+                "Client rate threshold",
+                0,
+                "Flag messages of clients sending more queries per second than this over the last minute, 0 to disable",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_CLIENT_RATE_MULTIPLIER,
+                "Client rate baseline multiplier",
+                0,
+                "Flag messages of clients whose query rate is this many times above their learned baseline, 0 to disable",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new BooleanField(
+                CK_QNAME_SCORING,
+                "Query name scoring",
+                false,
+                "Add tunneling/DGA indicators of the query name: entropy, longest label, digit ratio, bigram score and unique names of its domain"
+            ));
+            cr.addField( new NumberField(
+                CK_STORM_THRESHOLD,
+                "Error storm threshold",
+                0,
+                "NXDOMAIN/SERVFAIL responses per window for one registered domain above which the responses are collapsed into summaries, 0 to disable",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_STORM_WINDOW,
+                "Error storm window",
+                DEFAULT_STORM_WINDOW,
+                "Seconds of the window error responses are counted in",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_STORM_SUMMARY_INTERVAL,
+                "Error storm summary interval",
+                DEFAULT_STORM_SUMMARY_INTERVAL,
+                "Seconds between summary messages of an ongoing error storm",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new TextField(
+                CK_GEOIP_DATABASE,
+                "GeoIP country database",
+                "",
+                "Path to a MaxMind format Country or City database, adds the country of the query address and A/AAAA answers",
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            cr.addField( new TextField(
+                CK_ASN_DATABASE,
+                "GeoIP ASN database",
+                "",
+                "Path to a MaxMind format ASN database, adds the autonomous system of the query address and A/AAAA answers",
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            cr.addField( new NumberField(
+                CK_GEOIP_CACHE_SIZE,
+                "GeoIP cache size",
+                DEFAULT_GEOIP_CACHE_SIZE,
+                "Number of addresses whose GeoIP lookup results are cached",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new DropdownField(
+                CK_QUERY_SUBNET_MODE,
+                "Query subnet",
+                QUERY_SUBNET_DISABLED,
+                ImmutableMap.of(QUERY_SUBNET_DISABLED, "Disabled",
+                                QueryAddressMasker.Mode.SUBNET.name(), "Add subnet",
+                                QueryAddressMasker.Mode.TRUNCATE.name(), "Subnet only, drop address",
+                                QueryAddressMasker.Mode.PSEUDONYMIZE.name(), "Pseudonymize address and subnet"),
+                "Add dnstap_query_subnet (IPv4 /24, IPv6 by prefix below), optionally hiding the client address",
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            cr.addField( new DropdownField(
+                CK_QUERY_SUBNET_IPV6_PREFIX,
+                "Query subnet IPv6 prefix",
+                "56",
+                ImmutableMap.of("56", "/56", "48", "/48"),
+                "Prefix length of IPv6 query subnets",
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            cr.addField( new TextField(
+                CK_PSEUDONYM_KEY,
+                "Pseudonym key",
+                "",
+                "Secret key of the address pseudonyms, the same key gives the same pseudonyms. Required, without it addresses are truncated",
+                ConfigurationField.Optional.OPTIONAL,
+                TextField.Attribute.IS_PASSWORD
+            ));
+            cr.addField( new TextField(
+                CK_ANSWER_TYPES,
+                "Extra answer types",
+                "",
+                "Comma separated answer types added to the answer list besides A, AAAA, MX, CNAME, NS, SRV, PTR and SOA: "
+                    + String.join(", ", RdataRenderer.TYPES.keySet()),
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            cr.addField( new NumberField(
+                CK_CACHE_HIT_THRESHOLD,
+                "Cache hit threshold (ms)",
+                0,
+                "Mark a CLIENT_RESPONSE as cache hit when it took less than this and the resolver sent no RESOLVER_QUERY for the question while the client waited, 0 to disable. "
+                    + "Best-effort: needs RESOLVER_QUERY frames on the same node, left out when they may not be decoded yet",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new BooleanField(
+                CK_UPSTREAM_LATENCY,
+                "Upstream latency",
+                false,
+                "Keep latency histograms of upstream servers from RESOLVER_RESPONSE frames, exposed as metrics and summary messages every minute"
+            ));
+            cr.addField( new BooleanField(
+                CK_COMPACT_OUTPUT,
+                "Compact output",
+                false,
+                "Numeric type, socket, rcode, opcode, qtype and class codes in *_num/*_code fields, no zero section counters and no UPDATE section counters"
+            ));
+            cr.addField( new TextField(
+                CK_DISABLED_FIELDS,
+                "Disabled fields",
+                "",
+                "Comma separated message fields not to emit, e.g. dnstap_flags, dnstap_id",
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            cr.addField( new TextField(
+                CK_FIELD_PROFILE,
+                "Field profile",
+                "",
+                "Fields of a message: minimal, default, forensic, or a comma separated list of extractors "
+                    + "(e.g. qname, qtype, rcode, exec_time=latency) where extractor=name renames the field. "
+                    + "Empty for default, or minimal when a capture threshold or capture rcodes are set",
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            cr.addField( new NumberField(
+                CK_CAPTURE_THRESHOLD,
+                "Capture threshold (ms)",
+                0,
+                "Responses slower than this get the capture profile instead of the field profile, 0 to disable",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new TextField(
+                CK_CAPTURE_RCODES,
+                "Capture rcodes",
+                "",
+                "Comma separated rcodes whose responses get the capture profile, e.g. SERVFAIL, REFUSED",
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            cr.addField( new TextField(
+                CK_CAPTURE_PROFILE,
+                "Capture profile",
+                FieldProfile.FORENSIC,
+                "Field profile of captured slow or failed responses, its full_message is emitted even when pretty print is disabled",
+                ConfigurationField.Optional.OPTIONAL
+            ));
             //
             return cr;
         }
@@ -86,111 +393,502 @@ public class DnstapCodec extends AbstractCodec {
 
 
     private Message getMessage(final RawMessage rawMessage) {
+        final long startNanos = System.nanoTime();
+        final DnstapOuterClass.Dnstap dnstap = getDnstap(rawMessage);
+        if (dnstap == null) {
+            return null;
+        }
+        final DnstapIdentityCache.Identity identity = identities.resolve(dnstap);
+        final Message msg = parseMessage(dnstap.getMessage(), identity, rawMessage);
+        identity.decoded(System.nanoTime() - startNanos);
+        return msg;
+    }
+
+    private DnstapOuterClass.Dnstap getDnstap(final RawMessage rawMessage) {
         final byte[] payload = rawMessage.getPayload();
         final DnstapOuterClass.Dnstap dnstap;
         try {
             dnstap = DnstapOuterClass.Dnstap.parseFrom(payload);
         }
         catch (InvalidProtocolBufferException e) {
+            errorReporter.report(ParseErrorReporter.Reason.INVALID_PROTOBUF, getSource(rawMessage), payload, e);
+            identities.unknown().parseError();
             return null;
         }
         switch (dnstap.getType()) {
             case MESSAGE:
-                return parseMessage(dnstap.getMessage(), rawMessage);
+                break;
             default:
                 return null;
         }
+        final DnstapOuterClass.Message message = dnstap.getMessage();
+        final int typeNumber = message.getType().getNumber();
+        metrics.frameReceived(typeNumber);
+        if (! Helper.isSupported(message)) {
+            Log.trace("Rejected unsupported dnstap message of type {}", message.getType());
+            metrics.frameRejected(typeNumber);
+            return null;
+        }
+        return dnstap;
     }
 
     private Message parseMessage(final DnstapOuterClass.Message message,
+                                 final DnstapIdentityCache.Identity identity,
                                  final RawMessage rawMessage) {
         // Metadata from Dnstap
         final DateTime msgTimestamp  = Helper.getDateTime(message, rawMessage);
         final String   msgHostname   = Helper.getHostname(message, rawMessage);
         final long     msgExecTime   = Helper.getExecTimeNsec(message);
-        final String   msgType       = message.getType().toString();
-        final String   msgSockFamily = message.getSocketFamily().toString();
-        final String   msgSockProto  = message.getSocketProtocol().toString();
-        final String   msgQueryAddr  = Helper.prepareIpAddress(message.getQueryAddress());
-        final int      msgQueryPort  = message.getQueryPort();
-        final String   msgRespAddr   = Helper.prepareIpAddress(message.getResponseAddress());
-        final int      msgRespPort   = message.getResponsePort();
+        final String   msgQueryAddr;
+        final String   msgQuerySubnet;
+        if (settings.addressMasker != null && message.hasQueryAddress()) {
+            final QueryAddressMasker.Masked masked = settings.addressMasker.mask(message.getQueryAddress());
+            msgQueryAddr   = masked.address;
+            msgQuerySubnet = masked.subnet;
+        }
+        else {
+            msgQueryAddr   = Helper.prepareIpAddress(message.getQueryAddress());
+            msgQuerySubnet = null;
+        }
         // Dns packet
-        final Helper.DNSMessage dns = new Helper.DNSMessage(message);
-        if (dns == null || ! dns.isValid()) {
+        final Helper.DNSMessage dns = parseDns(message, settings.parseStages, identity, rawMessage);
+        if (dns == null) {
             return null;
         }
+        if (upstreamLatency != null && msgExecTime >= 0 && message.hasResponseAddress()
+                && message.getType() == DnstapOuterClass.Message.Type.RESOLVER_RESPONSE) {
+            upstreamLatency.record(message.getResponseAddress(), TimeUnit.NANOSECONDS.toMicros(msgExecTime));
+        }
+        if (settings.stormDetector != null && isErrorResponse(dns)) {
+            final ErrorStormDetector.Domain domain = settings.stormDetector.domain(
+                registeredDomainHash(message), () -> QnameScorer.registeredDomain(dns.questName));
+            switch (settings.stormDetector.observe(domain, dns.questName, dns.rcodeValue == Rcode.SERVFAIL, msgHostname,
+                                          System.currentTimeMillis())) {
+                case PASS:
+                    break;
+                case SUPPRESS:
+                    return null;
+                case SUMMARY:
+                    return getStormSummary(domain.takeSummary(), msgTimestamp);
+            }
+        }
         //
-        final String msgMessage = getShortMessage(msgQueryAddr, dns);
+        final DecodeContext context = DecodeContext.get();
+        final StringBuilder shortMessage = context.shortMessage();
+        appendShortMessage(shortMessage, (msgQueryAddr != null) ? msgQueryAddr : msgQuerySubnet, dns,
+                           (settings.parseStages & Helper.PARSE_ANSWERS) != 0);
+        final String msgMessage = shortMessage.toString();
         //
         final Message msg = new Message(msgMessage, msgHostname, msgTimestamp);
-        if (!withoutFullMessage) {
-            msg.addField("full_message", dns.getFullMessage());
-        }
-        if (msgExecTime >= 0) {
-            msg.addField("dnstap_exec_time", msgExecTime);
-        }
-        msg.addField("dnstap_type"       , msgType);
-        msg.addField("dnstap_sock_family", msgSockFamily);
-        msg.addField("dnstap_sock_proto" , msgSockProto);
-        if (msgQueryAddr != null) {
-            msg.addField("dnstap_query_addr", msgQueryAddr);
-            msg.addField("dnstap_query_port", msgQueryPort);
-        }
-        if (msgRespAddr != null) {
-            msg.addField("dnstap_resp_addr", msgRespAddr);
-            msg.addField("dnstap_resp_port", msgRespPort);
-        }
-        msg.addField("dnstap_size"       , dns.size);
-        msg.addField("dnstap_id"         , dns.id);
-        msg.addField("dnstap_flags"      , dns.flags);
-        msg.addField("dnstap_rcode"      , dns.rcode);
-        msg.addField("dnstap_opcode"     , dns.opcode);
+        final FieldProfile.Frame frame = context.frame;
+        frame.message     = message;
+        frame.dns         = dns;
+        frame.identity    = identity;
+        frame.execTime    = msgExecTime;
+        frame.queryAddr   = msgQueryAddr;
+        frame.querySubnet = msgQuerySubnet;
+        final String capture = getCaptureReason(dns, msgExecTime);
+        if (capture != null) {
+            settings.captureProfile.apply(frame, msg);
+            addField(msg, "dnstap_capture", capture);
+        }
+        else {
+            settings.fieldProfile.apply(frame, msg);
+        }
         //
-        msg.addField("dnstap_qname"      , dns.questName);
-        msg.addField("dnstap_qtype"      , dns.questType);
-        msg.addField("dnstap_qdclass"    , dns.questDClass);
+        if (settings.cacheHitThresholdNsec > 0 && settings.cacheHitFields) {
+            inferCacheHit(message, dns, msgExecTime, msg);
+        }
         //
-        msg.addField("dnstap_num_questions"  , dns.numQuestions);
-        msg.addField("dnstap_num_answers"    , dns.numAnswers);
-        msg.addField("dnstap_num_authorities", dns.numAuthorities);
-        msg.addField("dnstap_num_additionals", dns.numAdditionals);
-        msg.addField("dnstap_num_zones"      , dns.numZones);
-        msg.addField("dnstap_num_prereqs"    , dns.numPrereqs);
-        msg.addField("dnstap_num_updates"    , dns.numUpdates);
+        if ((settings.clientRateThreshold > 0 || settings.clientRateMultiplier > 0) && settings.clientRateFields) {
+            trackClientRate(message, msg);
+        }
+        if (settings.qnameScoring && settings.qnameScoreFields) {
+            scoreQname(message, dns, msg);
+        }
+        if (settings.geoIp != null) {
+            addGeoIp(message, dns, msg);
+        }
         //
         Log.trace("Dnstap out message {}", msg);
         return msg;
     }
 
 
-    private String getShortMessage(final String queryAddr,
-                                   final Helper.DNSMessage dns) {
+    private List<Message> parseAnswerMessages(final DnstapOuterClass.Message message,
+                                              final DnstapIdentityCache.Identity identity,
+                                              final RawMessage rawMessage) {
+        // Fields of answer messages come from the records, no optional stage
+        final Helper.DNSMessage dns = parseDns(message, 0, identity, rawMessage);
+        if (dns == null || dns.getType() != Helper.DnsFrameType.RESPONSE) {
+            return null;
+        }
+        final Record[] answers = dns.getAnswerRecords();
+        if (answers.length == 0) {
+            return null;
+        }
+        final DateTime msgTimestamp  = Helper.getDateTime(message, rawMessage);
+        final String   msgHostname   = Helper.getHostname(message, rawMessage);
+        final String   msgType       = message.getType().toString();
+        final String   msgRespAddr   = Helper.prepareIpAddress(message.getResponseAddress());
+        final long     msgSeenSec    = msgTimestamp.getMillis() / 1000;
+        final PassiveDnsStore store  = settings.pdnsStore;
+        //
+        final List<Message> result = new ArrayList<>(answers.length);
+        for (final Record rr : answers) {
+            final String rrName = rr.getName().toString();
+            final String rrType = Type.string(rr.getType());
+            final String rrData = settings.answerTypes.get(rr.getType())
+                ? MoreObjects.firstNonNull(RdataRenderer.render(rr), rr.rdataToString())
+                : rr.rdataToString();
+            // Passive DNS tuple, TTL does not make a record new
+            PassiveDnsStore.Observation seen = null;
+            if (store != null) {
+                final long hash = Hashing.murmur3_128().newHasher()
+                    .putString(rrName, StandardCharsets.UTF_8)
+                    .putInt(rr.getType())
+                    .putString(rrData, StandardCharsets.UTF_8)
+                    .hash().asLong();
+                seen = store.observe(hash, msgSeenSec);
+                if (seen == null) {
+                    continue;
+                }
+            }
+            //
+            // google.ru. A 300 173.194.44.95
+            final String msgMessage = rrName + " " + rrType + " " + rr.getTTL() + " " + rrData;
+            final Message msg = new Message(msgMessage, msgHostname, msgTimestamp);
+            if (identity.identity != null) {
+                msg.addField("dnstap_identity", identity.identity);
+            }
+            msg.addField("dnstap_type"   , msgType);
+            if (msgRespAddr != null) {
+                msg.addField("dnstap_resp_addr", msgRespAddr);
+            }
+            msg.addField("dnstap_qname"  , dns.questName);
+            msg.addField("dnstap_qtype"  , dns.questType);
+            msg.addField("dnstap_rcode"  , dns.rcode);
+            msg.addField("dnstap_rr_name", rrName);
+            msg.addField("dnstap_rr_type", rrType);
+            msg.addField("dnstap_rr_ttl" , rr.getTTL());
+            msg.addField("dnstap_rr_data", rrData);
+            if (settings.geoIp != null) {
+                final InetAddress address = getAddress(rr);
+                if (address != null) {
+                    addLocation(msg, "dnstap_rr_", settings.geoIp.lookup(address));
+                }
+            }
+            if (seen != null) {
+                msg.addField("dnstap_pdns_event"     , seen.firstSeen ? "first_seen" : "update");
+                msg.addField("dnstap_pdns_first_seen", new DateTime(seen.firstSeenSec * 1000));
+                msg.addField("dnstap_pdns_last_seen" , new DateTime(seen.lastSeenSec * 1000));
+                msg.addField("dnstap_pdns_count"     , seen.count);
+            }
+            result.add(msg);
+        }
+        Log.trace("Dnstap out {} answer messages", result.size());
+        return result;
+    }
+
+
+    private String getCaptureReason(final Helper.DNSMessage dns, final long execTime) {
+        if (settings.captureProfile == null || dns.getType() != Helper.DnsFrameType.RESPONSE) {
+            return null;
+        }
+        if (settings.captureThresholdNsec > 0 && execTime > settings.captureThresholdNsec) {
+            return "slow";
+        }
+        if (dns.rcodeValue >= 0 && settings.captureRcodes.get(dns.rcodeValue)) {
+            return "rcode";
+        }
+        return null;
+    }
+
+
+    private List<Message> addSummaries(final List<Message> messages,
+                                       final RawMessage rawMessage) {
+        final long nowMillis = System.currentTimeMillis();
+        final List<UpstreamLatencyTracker.Summary> summaries = (upstreamLatency != null)
+            ? upstreamLatency.takeSummaries(nowMillis)
+            : Collections.emptyList();
+        // Storms ended or due while their domain sent no errors
+        final List<ErrorStormDetector.Summary> stormSummaries = (settings.stormDetector != null)
+            ? settings.stormDetector.takeDueSummaries(nowMillis)
+            : Collections.emptyList();
+        if (summaries.isEmpty() && stormSummaries.isEmpty()) {
+            return messages;
+        }
+        final List<Message> result = new ArrayList<>(summaries.size() + stormSummaries.size()
+                                                     + ((messages != null) ? messages.size() : 0));
+        if (messages != null) {
+            result.addAll(messages);
+        }
+        final String hostname = getSource(rawMessage);
+        final DateTime now = new DateTime(nowMillis);
+        for (final ErrorStormDetector.Summary summary : stormSummaries) {
+            result.add(getStormSummary(summary, now));
+        }
+        for (final UpstreamLatencyTracker.Summary summary : summaries) {
+            //
+            // Upstream 192.0.2.53 latency p50=1200us p99=48000us p999=96000us (n=1234)
+            final String msgMessage = "Upstream " + summary.address + " latency p50=" + summary.p50
+                + "us p99=" + summary.p99 + "us p999=" + summary.p999 + "us (n=" + summary.count + ")";
+            final Message msg = new Message(msgMessage, hostname, now);
+            msg.addField("dnstap_type"              , "UPSTREAM_LATENCY_SUMMARY");
+            msg.addField("dnstap_resp_addr"         , summary.address);
+            msg.addField("dnstap_upstream_count"    , summary.count);
+            msg.addField("dnstap_upstream_p50_us"   , summary.p50);
+            msg.addField("dnstap_upstream_p99_us"   , summary.p99);
+            msg.addField("dnstap_upstream_p999_us"  , summary.p999);
+            msg.addField("dnstap_upstream_max_us"   , summary.max);
+            result.add(msg);
+        }
+        return result;
+    }
+
+
+    private void inferCacheHit(final DnstapOuterClass.Message message,
+                               final Helper.DNSMessage dns,
+                               final long execTime,
+                               final Message msg) {
+        final long timeNsec = Helper.getTimeNsec(message);
+        if (timeNsec < 0) {
+            return;
+        }
+        switch (message.getType()) {
+            case RESOLVER_QUERY:
+                resolverQueries.queried(questionKey(dns), timeNsec);
+                break;
+            case CLIENT_RESPONSE:
+                if (execTime < 0) {
+                    break;
+                }
+                // Only upstream queries sent while the client waited, between its query and response
+                switch (resolverQueries.queriedBetween(questionKey(dns), timeNsec - execTime, timeNsec,
+                                                       TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()))) {
+                    case QUERIED:
+                        addField(msg, "dnstap_cache_hit", false);
+                        break;
+                    case NONE:
+                        addField(msg, "dnstap_cache_hit", execTime < settings.cacheHitThresholdNsec);
+                        break;
+                    case UNKNOWN:
+                        // The table lost the question or may not have it yet, leave the field out
+                }
+                break;
+            default:
+        }
+    }
+
+    private static long questionKey(final Helper.DNSMessage dns) {
+        // Resolvers may randomize the case of upstream queries
+        return Hashing.murmur3_128().newHasher()
+            .putString(dns.questName.toLowerCase(Locale.ENGLISH), StandardCharsets.UTF_8)
+            .putInt(dns.questTypeValue)
+            .hash().asLong();
+    }
+
+
+    private void trackClientRate(final DnstapOuterClass.Message message,
+                                 final Message msg) {
+        if (! message.hasQueryAddress()) {
+            return;
+        }
+        // Only frames where query address is a client
+        switch (message.getType()) {
+            case CLIENT_QUERY:
+            case AUTH_QUERY:
+                clientRates.add(message.getQueryAddress());
+                break;
+            case CLIENT_RESPONSE:
+            case AUTH_RESPONSE:
+                break;
+            default:
+                return;
+        }
+        final double rate = clientRates.anomalousRate(message.getQueryAddress(), settings.clientRateThreshold, settings.clientRateMultiplier);
+        if (rate >= 0) {
+            addField(msg, "dnstap_client_rate_anomaly", true);
+            addField(msg, "dnstap_client_rate", Math.round(rate));
+        }
+    }
+
+
+    private void scoreQname(final DnstapOuterClass.Message message,
+                            final Helper.DNSMessage dns,
+                            final Message msg) {
+        final ByteString wire = (dns.getType() == Helper.DnsFrameType.QUERY)
+            ? message.getQueryMessage()
+            : message.getResponseMessage();
+        final QnameScorer scorer = QnameScorer.get();
+        if (! scorer.score(wire)) {
+            return;
+        }
+        addField(msg, "dnstap_qname_entropy"      , scorer.entropy);
+        addField(msg, "dnstap_qname_longest_label", scorer.longestLabel);
+        addField(msg, "dnstap_qname_digit_ratio"  , scorer.digitRatio);
+        addField(msg, "dnstap_qname_bigram_score" , scorer.bigramScore);
+        if (!settings.disabledFields.contains("dnstap_domain_subdomains")) {
+            final long uniqueNames = subdomains.add(scorer.domainHash, scorer.nameHash);
+            if (uniqueNames >= 0) {
+                msg.addField("dnstap_domain_subdomains", uniqueNames);
+            }
+        }
+    }
+
+
+    private static boolean isErrorResponse(final Helper.DNSMessage dns) {
+        return dns.getType() == Helper.DnsFrameType.RESPONSE
+            && (dns.rcodeValue == Rcode.NXDOMAIN || dns.rcodeValue == Rcode.SERVFAIL);
+    }
+
+    private static long registeredDomainHash(final DnstapOuterClass.Message message) {
+        final QnameScorer scorer = QnameScorer.get();
+        return scorer.hashDomain(message.getResponseMessage()) ? scorer.domainHash : 0;
+    }
+
+    private static Message getStormSummary(final ErrorStormDetector.Summary summary,
+                                           final DateTime timestamp) {
+        //
+        // Error storm for example.com.: 1200 NXDOMAIN, 3 SERVFAIL [a1b2.example.com. ...]
+        final String msgMessage = "Error storm for " + summary.domain + ": "
+            + summary.nxdomain + " NXDOMAIN, " + summary.servfail + " SERVFAIL"
+            + " [" + String.join(" ", summary.samples) + "]";
+        final Message msg = new Message(msgMessage, summary.source, timestamp);
+        msg.addField("dnstap_type"           , "ERROR_STORM_SUMMARY");
+        msg.addField("dnstap_storm_domain"   , summary.domain);
+        msg.addField("dnstap_storm_active"   , summary.active);
+        msg.addField("dnstap_storm_nxdomain" , summary.nxdomain);
+        msg.addField("dnstap_storm_servfail" , summary.servfail);
+        msg.addField("dnstap_storm_samples"  , String.join(" ", summary.samples));
+        return msg;
+    }
+
+
+    private void addGeoIp(final DnstapOuterClass.Message message,
+                          final Helper.DNSMessage dns,
+                          final Message msg) {
+        if (settings.geoIpQueryFields && message.hasQueryAddress()) {
+            addLocation(msg, "dnstap_query_", settings.geoIp.lookup(message.getQueryAddress()));
+        }
+        if (!settings.geoIpAnswerFields || dns.getType() != Helper.DnsFrameType.RESPONSE || dns.numAnswers == 0) {
+            return;
+        }
+        // Distinct countries and autonomous systems of the answer addresses
+        final Set<String> countries = new LinkedHashSet<>();
+        final Set<Long> asns = new LinkedHashSet<>();
+        for (final Record rr : dns.getAnswerRecords()) {
+            final InetAddress address = getAddress(rr);
+            if (address == null) {
+                continue;
+            }
+            final GeoIpLookup.Location location = settings.geoIp.lookup(address);
+            if (location.country != null) {
+                countries.add(location.country);
+            }
+            if (location.asn != 0) {
+                asns.add(location.asn);
+            }
+        }
+        if (!countries.isEmpty()) {
+            addField(msg, "dnstap_answer_countries", String.join(" ", countries));
+        }
+        if (!asns.isEmpty()) {
+            addField(msg, "dnstap_answer_asns", Joiner.on(' ').join(asns));
+        }
+    }
+
+    private void addLocation(final Message msg,
+                             final String prefix,
+                             final GeoIpLookup.Location location) {
+        if (location.country != null) {
+            addField(msg, prefix + "country", location.country);
+        }
+        if (location.asn != 0) {
+            addField(msg, prefix + "asn", location.asn);
+        }
+        if (location.asOrg != null) {
+            addField(msg, prefix + "as_org", location.asOrg);
+        }
+    }
+
+    /**
+     * Adds an enrichment field unless it is disabled.
+     */
+    private void addField(final Message msg, final String field, final Object value) {
+        if (!settings.disabledFields.contains(field)) {
+            msg.addField(field, value);
+        }
+    }
+
+    private static InetAddress getAddress(final Record rr) {
+        switch (rr.getType()) {
+            case Type.A:
+                return ((ARecord) rr).getAddress();
+            case Type.AAAA:
+                return ((AAAARecord) rr).getAddress();
+            default:
+                return null;
+        }
+    }
+
+
+    private Helper.DNSMessage parseDns(final DnstapOuterClass.Message message,
+                                       final int stages,
+                                       final DnstapIdentityCache.Identity identity,
+                                       final RawMessage rawMessage) {
+        final Helper.DNSMessage dns = DecodeContext.get().dns.parse(message, settings.answerTypes, stages);
+        if (! dns.isValid()) {
+            final byte[] wire = (dns.getType() == Helper.DnsFrameType.QUERY)
+                ? message.getQueryMessage().toByteArray()
+                : message.getResponseMessage().toByteArray();
+            errorReporter.report(ParseErrorReporter.Reason.INVALID_DNS_WIRE, getSource(rawMessage), wire, dns.getError());
+            identity.parseError();
+            return null;
+        }
+        return dns;
+    }
+
+
+    private static String getSource(final RawMessage rawMessage) {
+        final ResolvableInetSocketAddress addr = rawMessage.getRemoteAddress();
+        return (addr != null) ? addr.getInetSocketAddress().toString() : "unknown";
+    }
+
+
+    /**
+     * Appends the short message to the empty builder.
+     */
+    private static void appendShortMessage(final StringBuilder sb,
+                                           final String queryAddr,
+                                           final Helper.DNSMessage dns,
+                                           final boolean answersParsed) {
         //
         // 10.76.151.44 -> google.ru. (IN, A)
         // 10.76.151.44 <- google.ru. (IN, A) [173.194.44.95 173.194.44.87 173.194.44.88]
-        final String question = dns.firstQuestion;
-        final String direction;
-        final String answer;
+        // 10.76.151.44 <- google.ru. (IN, A) [3 answers]
+        sb.append(queryAddr).append(' ');
         switch (dns.getType()) {
             case QUERY:
-                direction = "->";
-                answer  = "";
+                sb.append("-> ").append(dns.firstQuestion);
                 break;
             case RESPONSE:
-                direction = "<-";
-                if (dns.numAnswers > 0) {
-                    answer = " [" + String.join(" ", dns.listOfAnswersData) + "]";
+                sb.append("<- ").append(dns.firstQuestion).append(" [");
+                if (!answersParsed) {
+                    sb.append(dns.numAnswers).append(" answers]");
+                    break;
                 }
-                else {
-                    answer = " []";
+                for (int i = 0; i < dns.listOfAnswersData.size(); i++) {
+                    if (i > 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(dns.listOfAnswersData.get(i));
                 }
+                sb.append(']');
                 break;
             default:
-                direction = "";
-                answer = "";
+                sb.append(' ').append(dns.firstQuestion);
         }
-        return queryAddr + " " + direction + " " + question + answer;
     }
 
 }
@@ -0,0 +1,51 @@
+package org.graylog.plugins.dnstap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import org.graylog.plugins.dnstap.protos.DnstapOuterClass;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Codec metrics, registered once per node because Graylog creates
+ * a codec instance per raw message.
+ */
+@Singleton
+public class DnstapCodecMetrics {
+    private static final String UNKNOWN_TYPE = "UNKNOWN";
+
+    private final Counter[] framesByType;
+    private final Counter[] rejectedByType;
+
+    @Inject
+    public DnstapCodecMetrics(final MetricRegistry metricRegistry) {
+        final DnstapOuterClass.Message.Type[] types = DnstapOuterClass.Message.Type.values();
+        int maxNumber = 0;
+        for (DnstapOuterClass.Message.Type type : types) {
+            maxNumber = Math.max(maxNumber, type.getNumber());
+        }
+        framesByType   = new Counter[maxNumber + 1];
+        rejectedByType = new Counter[maxNumber + 1];
+        framesByType[0]   = metricRegistry.counter(name(DnstapCodec.class, "frames", UNKNOWN_TYPE));
+        rejectedByType[0] = metricRegistry.counter(name(DnstapCodec.class, "rejected", UNKNOWN_TYPE));
+        for (DnstapOuterClass.Message.Type type : types) {
+            framesByType[type.getNumber()]   = metricRegistry.counter(name(DnstapCodec.class, "frames", type.name()));
+            rejectedByType[type.getNumber()] = metricRegistry.counter(name(DnstapCodec.class, "rejected", type.name()));
+        }
+    }
+
+    public void frameReceived(final int typeNumber) {
+        framesByType[index(typeNumber)].inc();
+    }
+
+    public void frameRejected(final int typeNumber) {
+        rejectedByType[index(typeNumber)].inc();
+    }
+
+    private int index(final int typeNumber) {
+        return (typeNumber > 0 && typeNumber < framesByType.length) ? typeNumber : 0;
+    }
+}
@@ -0,0 +1,188 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import org.graylog2.plugin.configuration.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_ANSWER_DEDUP_WINDOW;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_ANSWER_MESSAGES;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_ANSWER_TYPES;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_ASN_DATABASE;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_CACHE_HIT_THRESHOLD;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_CAPTURE_PROFILE;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_CAPTURE_RCODES;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_CAPTURE_THRESHOLD;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_CLIENT_RATE_MULTIPLIER;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_CLIENT_RATE_THRESHOLD;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_COMPACT_OUTPUT;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_DISABLED_FIELDS;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_DO_NOT_PUT_FULL_MESSAGE;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_FIELD_PROFILE;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_GEOIP_CACHE_SIZE;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_GEOIP_DATABASE;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_PDNS_MEMORY;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_PDNS_UPDATE_INTERVAL;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_PSEUDONYM_KEY;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_QNAME_SCORING;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_QUERY_SUBNET_IPV6_PREFIX;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_QUERY_SUBNET_MODE;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_STORM_SUMMARY_INTERVAL;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_STORM_THRESHOLD;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_STORM_WINDOW;
+import static org.graylog.plugins.dnstap.DnstapCodec.CK_UPSTREAM_LATENCY;
+import static org.graylog.plugins.dnstap.DnstapCodec.DEFAULT_ANSWER_DEDUP_WINDOW;
+import static org.graylog.plugins.dnstap.DnstapCodec.DEFAULT_GEOIP_CACHE_SIZE;
+import static org.graylog.plugins.dnstap.DnstapCodec.DEFAULT_PDNS_MEMORY;
+import static org.graylog.plugins.dnstap.DnstapCodec.DEFAULT_PDNS_UPDATE_INTERVAL;
+import static org.graylog.plugins.dnstap.DnstapCodec.DEFAULT_STORM_SUMMARY_INTERVAL;
+import static org.graylog.plugins.dnstap.DnstapCodec.DEFAULT_STORM_WINDOW;
+import static org.graylog.plugins.dnstap.DnstapCodec.QUERY_SUBNET_DISABLED;
+
+/**
+    Codec configuration parsed once per input instead of once per message,
+    Graylog creates a codec instance for every raw message. Holds the node
+    wide detectors, lookups and profiles the configuration selects.
+*/
+public class DnstapCodecSettings {
+    final boolean answerMessages;
+    final PassiveDnsStore pdnsStore;
+    final int clientRateThreshold;
+    final int clientRateMultiplier;
+    final boolean qnameScoring;
+    final ErrorStormDetector stormDetector;
+    final GeoIpLookup geoIp;
+    final QueryAddressMasker addressMasker;
+    final BitSet answerTypes;
+    final long cacheHitThresholdNsec;
+    final boolean upstreamLatency;
+    final Set<String> disabledFields;
+    final boolean cacheHitFields;
+    final boolean clientRateFields;
+    final boolean qnameScoreFields;
+    final boolean geoIpQueryFields;
+    final boolean geoIpAnswerFields;
+    final FieldProfile fieldProfile;
+    final FieldProfile captureProfile;
+    final long captureThresholdNsec;
+    final BitSet captureRcodes;
+    final int parseStages;
+
+    private DnstapCodecSettings(final Configuration configuration,
+                                final PassiveDnsStore.Registry pdnsStores,
+                                final ErrorStormDetector.Registry stormDetectors,
+                                final GeoIpLookup.Registry geoIpLookups,
+                                final QueryAddressMasker.Registry addressMaskers,
+                                final FieldProfile.Registry fieldProfiles) {
+        this.answerMessages     = configuration.getBoolean(CK_ANSWER_MESSAGES);
+        final int answerDedupWindow = configuration.getInt(CK_ANSWER_DEDUP_WINDOW, DEFAULT_ANSWER_DEDUP_WINDOW);
+        this.pdnsStore          = (answerMessages && answerDedupWindow > 0)
+            ? pdnsStores.get(configuration.getInt(CK_PDNS_MEMORY, DEFAULT_PDNS_MEMORY) * 1024L * 1024L,
+                             answerDedupWindow,
+                             configuration.getInt(CK_PDNS_UPDATE_INTERVAL, DEFAULT_PDNS_UPDATE_INTERVAL))
+            : null;
+        this.clientRateThreshold  = configuration.getInt(CK_CLIENT_RATE_THRESHOLD, 0);
+        this.clientRateMultiplier = configuration.getInt(CK_CLIENT_RATE_MULTIPLIER, 0);
+        this.qnameScoring       = configuration.getBoolean(CK_QNAME_SCORING);
+        final int stormThreshold = configuration.getInt(CK_STORM_THRESHOLD, 0);
+        this.stormDetector      = (stormThreshold > 0)
+            ? stormDetectors.get(stormThreshold,
+                                 configuration.getInt(CK_STORM_WINDOW, DEFAULT_STORM_WINDOW),
+                                 configuration.getInt(CK_STORM_SUMMARY_INTERVAL, DEFAULT_STORM_SUMMARY_INTERVAL))
+            : null;
+        final String geoIpDatabase = Strings.nullToEmpty(configuration.getString(CK_GEOIP_DATABASE)).trim();
+        final String asnDatabase   = Strings.nullToEmpty(configuration.getString(CK_ASN_DATABASE)).trim();
+        this.geoIp              = (!geoIpDatabase.isEmpty() || !asnDatabase.isEmpty())
+            ? geoIpLookups.get(geoIpDatabase, asnDatabase,
+                               configuration.getInt(CK_GEOIP_CACHE_SIZE, DEFAULT_GEOIP_CACHE_SIZE))
+            : null;
+        final String subnetMode = configuration.getString(CK_QUERY_SUBNET_MODE, QUERY_SUBNET_DISABLED);
+        this.addressMasker      = !QUERY_SUBNET_DISABLED.equals(subnetMode)
+            ? addressMaskers.get(QueryAddressMasker.Mode.valueOf(subnetMode),
+                                 Integer.parseInt(configuration.getString(CK_QUERY_SUBNET_IPV6_PREFIX, "56")),
+                                 Strings.nullToEmpty(configuration.getString(CK_PSEUDONYM_KEY)))
+            : null;
+        this.answerTypes        = RdataRenderer.parseTypes(configuration.getString(CK_ANSWER_TYPES));
+        this.cacheHitThresholdNsec = TimeUnit.MILLISECONDS.toNanos(configuration.getInt(CK_CACHE_HIT_THRESHOLD, 0));
+        this.upstreamLatency    = configuration.getBoolean(CK_UPSTREAM_LATENCY);
+        this.disabledFields     = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings()
+                                                           .split(Strings.nullToEmpty(configuration.getString(CK_DISABLED_FIELDS))));
+        this.captureThresholdNsec = TimeUnit.MILLISECONDS.toNanos(configuration.getInt(CK_CAPTURE_THRESHOLD, 0));
+        this.captureRcodes      = fieldProfiles.rcodes(Strings.nullToEmpty(configuration.getString(CK_CAPTURE_RCODES)));
+        final boolean capture   = (captureThresholdNsec > 0 || !captureRcodes.isEmpty());
+        this.captureProfile     = capture
+            ? fieldProfiles.get(configuration.getString(CK_CAPTURE_PROFILE, FieldProfile.FORENSIC),
+                                configuration.getBoolean(CK_COMPACT_OUTPUT),
+                                false,
+                                disabledFields)
+            : null;
+        // Normal traffic stays lightweight while capture takes the details
+        final String profile    = Strings.nullToEmpty(configuration.getString(CK_FIELD_PROFILE)).trim();
+        this.fieldProfile       = fieldProfiles.get(!profile.isEmpty() ? profile
+                                                        : capture ? FieldProfile.MINIMAL : FieldProfile.DEFAULT,
+                                                    configuration.getBoolean(CK_COMPACT_OUTPUT),
+                                                    configuration.getBoolean(CK_DO_NOT_PUT_FULL_MESSAGE),
+                                                    disabledFields);
+        // Enrichments run only for fields not all disabled
+        this.cacheHitFields     = anyEnabled("dnstap_cache_hit");
+        this.clientRateFields   = anyEnabled("dnstap_client_rate_anomaly", "dnstap_client_rate");
+        this.qnameScoreFields   = anyEnabled("dnstap_qname_entropy", "dnstap_qname_longest_label", "dnstap_qname_digit_ratio",
+                                             "dnstap_qname_bigram_score", "dnstap_domain_subdomains");
+        this.geoIpQueryFields   = anyEnabled("dnstap_query_country", "dnstap_query_asn", "dnstap_query_as_org");
+        this.geoIpAnswerFields  = anyEnabled("dnstap_answer_countries", "dnstap_answer_asns");
+        // The short message lists the answers only when a profile parses them
+        this.parseStages        = fieldProfile.stages()
+            | ((captureProfile != null) ? captureProfile.stages() : 0);
+    }
+
+    private boolean anyEnabled(final String... fields) {
+        for (final String field : fields) {
+            if (!disabledFields.contains(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Parsed settings by configuration, an input passes an equal one with
+     * every raw message. Settings are parsed again every minute, which keeps
+     * the detectors and lookups they hold alive in their own registries.
+     */
+    @Singleton
+    public static class Registry {
+        private final LoadingCache<Map<String, Object>, DnstapCodecSettings> settings;
+
+        @Inject
+        public Registry(final PassiveDnsStore.Registry pdnsStores,
+                        final ErrorStormDetector.Registry stormDetectors,
+                        final GeoIpLookup.Registry geoIpLookups,
+                        final QueryAddressMasker.Registry addressMaskers,
+                        final FieldProfile.Registry fieldProfiles) {
+            this.settings = CacheBuilder.newBuilder()
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .build(new CacheLoader<Map<String, Object>, DnstapCodecSettings>() {
+                    @Override
+                    public DnstapCodecSettings load(final Map<String, Object> source) {
+                        return new DnstapCodecSettings(new Configuration(source), pdnsStores, stormDetectors,
+                                                       geoIpLookups, addressMaskers, fieldProfiles);
+                    }
+                });
+        }
+
+        public DnstapCodecSettings get(final Configuration configuration) {
+            return settings.getUnchecked(configuration.getSource());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.base.Splitter;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.graylog.plugins.dnstap.protos.DnstapOuterClass;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Re-encodes dnstap frames without the fields the codec does not need,
+ * so less bytes are written to the journal. Frames which cannot be
+ * parsed are passed as is and reported by the codec.
+ * Identity and version are always kept, every journaled frame must
+ * decode on its own, e.g. when the journal is replayed.
+ */
+public class DnstapFrameRewriter extends OneToOneDecoder {
+    private static final Logger Log = LoggerFactory.getLogger(DnstapFrameRewriter.class);
+
+    public enum Field {
+        EXTRA,
+        QUERY_ZONE,
+        // Only when the response message is present
+        QUERY_MESSAGE
+    }
+
+    private final Set<Field> strip;
+
+    public DnstapFrameRewriter(final Set<Field> strip) {
+        this.strip = strip;
+    }
+
+    /**
+     * Parses comma separated field names, unknown names are ignored.
+     */
+    public static Set<Field> parseFields(final String fields) {
+        final Set<Field> result = EnumSet.noneOf(Field.class);
+        if (fields == null) {
+            return result;
+        }
+        for (String field : Splitter.on(',').trimResults().omitEmptyStrings().split(fields)) {
+            try {
+                result.add(Field.valueOf(field.toUpperCase(Locale.ENGLISH)));
+            }
+            catch (IllegalArgumentException e) {
+                Log.warn("Unknown dnstap field to strip: {}", field);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected Object decode(final ChannelHandlerContext ctx,
+                            final Channel channel,
+                            final Object msg) throws Exception {
+        if (!(msg instanceof ChannelBuffer)) {
+            return msg;
+        }
+        final ChannelBuffer frame = (ChannelBuffer) msg;
+        final DnstapOuterClass.Dnstap dnstap;
+        try {
+            dnstap = DnstapOuterClass.Dnstap.parseFrom(CodedInputStream.newInstance(frame.toByteBuffer()));
+        }
+        catch (InvalidProtocolBufferException e) {
+            return frame;
+        }
+        if (!hasStrippedFields(dnstap)) {
+            return frame;
+        }
+        final DnstapOuterClass.Dnstap.Builder builder = dnstap.toBuilder();
+        if (strip.contains(Field.EXTRA)) {
+            builder.clearExtra();
+        }
+        if (dnstap.hasMessage()) {
+            final DnstapOuterClass.Message message = dnstap.getMessage();
+            final DnstapOuterClass.Message.Builder messageBuilder = builder.getMessageBuilder();
+            if (strip.contains(Field.QUERY_ZONE)) {
+                messageBuilder.clearQueryZone();
+            }
+            if (strip.contains(Field.QUERY_MESSAGE) && message.hasResponseMessage()) {
+                messageBuilder.clearQueryMessage();
+            }
+        }
+        return ChannelBuffers.wrappedBuffer(builder.build().toByteArray());
+    }
+
+    private boolean hasStrippedFields(final DnstapOuterClass.Dnstap dnstap) {
+        final DnstapOuterClass.Message message = dnstap.getMessage();
+        return (strip.contains(Field.EXTRA) && dnstap.hasExtra())
+            || (strip.contains(Field.QUERY_ZONE) && message.hasQueryZone())
+            || (strip.contains(Field.QUERY_MESSAGE) && message.hasQueryMessage() && message.hasResponseMessage());
+    }
+}
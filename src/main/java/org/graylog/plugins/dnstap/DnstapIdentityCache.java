@@ -0,0 +1,145 @@
+package org.graylog.plugins.dnstap;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.ByteString;
+import org.graylog.plugins.dnstap.protos.DnstapOuterClass;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Decoded dnstap identity and version, keyed by the bytes of the frame.
+ * The strings are decoded once and interned. Only the frame itself is
+ * trusted, frames are decoded out of order and replayed from the journal,
+ * and a remote address may be reused by another sender. Also keeps
+ * metrics per identity.
+ */
+@Singleton
+public class DnstapIdentityCache {
+    private static final int MAX_IDENTITIES = 10_000;
+    private static final int MAX_IDENTITY_METRICS = 1_000;
+    private static final String UNKNOWN = "unknown";
+
+    private final MetricRegistry metricRegistry;
+    private final Cache<Key, Identity> identities = CacheBuilder.newBuilder()
+            .maximumSize(MAX_IDENTITIES)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+    private final ConcurrentMap<String, IdentityMetrics> identityMetrics = new ConcurrentHashMap<>();
+    private final Identity unknown;
+
+    @Inject
+    public DnstapIdentityCache(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        this.unknown = new Identity(ByteString.EMPTY, ByteString.EMPTY, metricsFor(UNKNOWN));
+    }
+
+    public Identity resolve(final DnstapOuterClass.Dnstap dnstap) {
+        if (!dnstap.hasIdentity() && !dnstap.hasVersion()) {
+            return unknown;
+        }
+        final Key key = new Key(dnstap.getIdentity(), dnstap.getVersion());
+        final Identity cached = identities.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        final String identity = key.identity.isEmpty() ? UNKNOWN : key.identity.toStringUtf8();
+        final Identity result = new Identity(key.identity, key.version, metricsFor(identity));
+        identities.put(key, result);
+        return result;
+    }
+
+    /**
+     * Identity of frames which cannot be parsed.
+     */
+    public Identity unknown() {
+        return unknown;
+    }
+
+    private IdentityMetrics metricsFor(final String identity) {
+        final IdentityMetrics metrics = identityMetrics.get(identity);
+        if (metrics != null) {
+            return metrics;
+        }
+        if (identityMetrics.size() >= MAX_IDENTITY_METRICS) {
+            return (unknown != null) ? unknown.metrics : new IdentityMetrics(metricRegistry, UNKNOWN);
+        }
+        return identityMetrics.computeIfAbsent(identity, id -> new IdentityMetrics(metricRegistry, id));
+    }
+
+
+    private static class Key {
+        private final ByteString identity;
+        private final ByteString version;
+
+        private Key(final ByteString identity, final ByteString version) {
+            this.identity = identity;
+            this.version  = version;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key that = (Key) o;
+            return identity.equals(that.identity) && version.equals(that.version);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * identity.hashCode() + version.hashCode();
+        }
+    }
+
+
+    public static class Identity {
+        private final IdentityMetrics metrics;
+        @Nullable
+        public final String identity;
+        @Nullable
+        public final String version;
+
+        private Identity(final ByteString identityBytes,
+                         final ByteString versionBytes,
+                         final IdentityMetrics metrics) {
+            this.metrics       = metrics;
+            this.identity      = identityBytes.isEmpty() ? null : identityBytes.toStringUtf8().intern();
+            this.version       = versionBytes.isEmpty() ? null : versionBytes.toStringUtf8().intern();
+        }
+
+        public void decoded(final long elapsedNanos) {
+            metrics.messages.mark();
+            metrics.decodeTime.update(elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public void parseError() {
+            metrics.parseErrors.mark();
+        }
+    }
+
+    private static class IdentityMetrics {
+        private final Meter messages;
+        private final Meter parseErrors;
+        private final Timer decodeTime;
+
+        private IdentityMetrics(final MetricRegistry registry, final String identity) {
+            this.messages    = registry.meter(name(DnstapCodec.class, "identities", identity, "messages"));
+            this.parseErrors = registry.meter(name(DnstapCodec.class, "identities", identity, "parse_errors"));
+            this.decodeTime  = registry.timer(name(DnstapCodec.class, "identities", identity, "decode_time"));
+        }
+    }
+}
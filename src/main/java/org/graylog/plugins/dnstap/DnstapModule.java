@@ -23,5 +23,8 @@ public class DnstapModule extends PluginModule {
          addTransport("fstrm", FstrmTransport.class);
          addCodec("dnstap", DnstapCodec.class);
          addMessageInput(DnstapFstrmInput.class);
+         addPermissions(DnstapPermissions.class);
+         addRestResource(ParseErrorsResource.class);
+         addRestResource(ConnectionsResource.class);
     }
 }
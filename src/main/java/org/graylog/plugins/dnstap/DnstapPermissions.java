@@ -0,0 +1,32 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.collect.ImmutableSet;
+import org.graylog2.plugin.security.Permission;
+import org.graylog2.plugin.security.PluginPermissions;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Permissions of the REST resources, which expose raw frames. Not granted
+ * to readers, only admins and roles given them explicitly.
+ */
+public class DnstapPermissions implements PluginPermissions {
+    public static final String PARSE_ERRORS_READ = "dnstap_parse_errors:read";
+    public static final String CONNECTIONS_READ  = "dnstap_connections:read";
+
+    private final ImmutableSet<Permission> permissions = ImmutableSet.of(
+        Permission.create(PARSE_ERRORS_READ, "Read dnstap parse errors and their frames"),
+        Permission.create(CONNECTIONS_READ , "Read live fstrm connections and their recent frames")
+    );
+
+    @Override
+    public Set<Permission> permissions() {
+        return permissions;
+    }
+
+    @Override
+    public Set<Permission> readerBasePermissions() {
+        return Collections.emptySet();
+    }
+}
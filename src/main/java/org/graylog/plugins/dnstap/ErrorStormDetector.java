@@ -0,0 +1,313 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+    Detects NXDOMAIN/SERVFAIL storms per registered domain, e.g. random
+    subdomain attacks, and collapses the matching responses into periodic
+    summaries while the storm lasts.
+
+    Error rate of a domain is counted in fixed windows and smoothed with
+    the previous window. A storm starts when the rate reaches the threshold
+    and ends when it falls below half of it. Domains are kept in a fixed
+    table of 2-way buckets addressed by the registered domain hash. A
+    colliding domain takes the way not in a storm, a domain finding both
+    ways in a storm is counted apart and never suppressed.
+
+    Summaries come with error responses of the domain and from {@link
+    #takeDueSummaries}, which ends storms whose errors stopped coming.
+*/
+public class ErrorStormDetector {
+    private static final int SLOTS = 4096;
+    private static final int WAYS = 2;
+    private static final long SWEEP_MILLIS = 1000;
+    private static final int MAX_SAMPLES = 5;
+
+    public enum Verdict {
+        PASS,
+        SUPPRESS,
+        SUMMARY
+    }
+
+    private final int threshold;
+    private final long windowMillis;
+    private final long summaryMillis;
+    private final AtomicReferenceArray<Domain> domains = new AtomicReferenceArray<>(SLOTS);
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    public ErrorStormDetector(final int threshold,
+                              final int windowSec,
+                              final int summaryIntervalSec) {
+        this.threshold     = threshold;
+        this.windowMillis  = TimeUnit.SECONDS.toMillis(Math.max(1, windowSec));
+        this.summaryMillis = TimeUnit.SECONDS.toMillis(Math.max(1, summaryIntervalSec));
+    }
+
+    /**
+     * Registers an error response. On SUMMARY verdict the summary to emit
+     * instead of the response is available from {@link Domain#takeSummary}.
+     */
+    public Verdict observe(final Domain domain,
+                           final String qname,
+                           final boolean servfail,
+                           final String source,
+                           final long nowMillis) {
+        if (domain.untracked) {
+            return Verdict.PASS;
+        }
+        final long rate = domain.count(nowMillis, windowMillis);
+        if (!domain.storm) {
+            if (rate < threshold) {
+                return Verdict.PASS;
+            }
+            synchronized (domain) {
+                if (!domain.storm) {
+                    domain.storm = true;
+                    domain.nextSummary = nowMillis + summaryMillis;
+                }
+            }
+        }
+        domain.suppress(qname, servfail, source);
+        if (ended(rate) || nowMillis >= domain.nextSummary) {
+            synchronized (domain) {
+                if (domain.storm && (ended(rate) || nowMillis >= domain.nextSummary)) {
+                    domain.storm = !ended(rate);
+                    domain.nextSummary = nowMillis + summaryMillis;
+                    return Verdict.SUMMARY;
+                }
+            }
+        }
+        return Verdict.SUPPRESS;
+    }
+
+    // Below half the threshold, without rounding half of 1 down to 0
+    private boolean ended(final long rate) {
+        return 2 * rate < threshold;
+    }
+
+    /**
+     * Returns the state of the domain, {@code name} is only called when
+     * the domain takes a slot.
+     */
+    public Domain domain(final long domainHash, final Supplier<String> name) {
+        final int first = (int) (domainHash & (SLOTS - 1) & ~(WAYS - 1));
+        int free = -1;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            final Domain current = domains.get(slot);
+            if (current != null && current.hash == domainHash) {
+                return current;
+            }
+            // An empty way first, then one not in a storm
+            if ((current == null) ? (free < 0 || domains.get(free) != null) : (free < 0 && !current.storm)) {
+                free = slot;
+            }
+        }
+        final Domain fresh = new Domain(domainHash, name.get());
+        final Domain current = (free >= 0) ? domains.get(free) : null;
+        if (free >= 0 && (current == null || !current.storm)) {
+            if (domains.compareAndSet(free, current, fresh)) {
+                return fresh;
+            }
+            final Domain winner = domains.get(free);
+            if (winner != null && winner.hash == domainHash) {
+                return winner;
+            }
+        }
+        fresh.untracked = true;
+        return fresh;
+    }
+
+    /**
+     * Returns the summaries of storms that are due or ended, at most once a second.
+     * Errors of a domain stopping altogether end its storm only here.
+     */
+    public List<Summary> takeDueSummaries(final long nowMillis) {
+        final long next = nextSweep.get();
+        if (nowMillis < next || !nextSweep.compareAndSet(next, nowMillis + SWEEP_MILLIS)) {
+            return Collections.emptyList();
+        }
+        List<Summary> summaries = null;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            final Domain domain = domains.get(slot);
+            if (domain == null || !domain.storm) {
+                continue;
+            }
+            final long rate = domain.rate(nowMillis, windowMillis);
+            synchronized (domain) {
+                if (!domain.storm || (!ended(rate) && nowMillis < domain.nextSummary)) {
+                    continue;
+                }
+                domain.storm = !ended(rate);
+                domain.nextSummary = nowMillis + summaryMillis;
+                if (summaries == null) {
+                    summaries = new ArrayList<>();
+                }
+                summaries.add(domain.takeSummary());
+            }
+        }
+        return (summaries != null) ? summaries : Collections.emptyList();
+    }
+
+
+    public static class Domain {
+        private final long hash;
+        public final String name;
+        private final AtomicLong window = new AtomicLong(-1);
+        private final AtomicLong current = new AtomicLong();
+        private volatile long previous = 0;
+        private volatile boolean storm = false;
+        private volatile long nextSummary = 0;
+        private boolean untracked = false;
+        private long suppressedNxdomain = 0;
+        private long suppressedServfail = 0;
+        private final List<String> samples = new ArrayList<>(MAX_SAMPLES);
+        private String source;
+
+        private Domain(final long hash, final String name) {
+            this.hash = hash;
+            this.name = name;
+        }
+
+        private long count(final long nowMillis, final long windowMillis) {
+            final long nowWindow = nowMillis / windowMillis;
+            final long seenWindow = window.get();
+            if (seenWindow != nowWindow && window.compareAndSet(seenWindow, nowWindow)) {
+                previous = (nowWindow == seenWindow + 1) ? current.getAndSet(0) : 0;
+                if (nowWindow != seenWindow + 1) {
+                    current.set(0);
+                }
+            }
+            final long count = current.incrementAndGet();
+            // Sliding estimate: the previous window weighted by its remaining overlap
+            final double elapsed = (nowMillis % windowMillis) / (double) windowMillis;
+            return count + Math.round(previous * (1 - elapsed));
+        }
+
+        /**
+         * Same estimate as {@link #count} without counting an error.
+         */
+        private long rate(final long nowMillis, final long windowMillis) {
+            final long nowWindow = nowMillis / windowMillis;
+            final long seenWindow = window.get();
+            final double remaining = 1 - (nowMillis % windowMillis) / (double) windowMillis;
+            if (nowWindow == seenWindow) {
+                return current.get() + Math.round(previous * remaining);
+            }
+            return (nowWindow == seenWindow + 1) ? Math.round(current.get() * remaining) : 0;
+        }
+
+        private synchronized void suppress(final String qname, final boolean servfail, final String source) {
+            this.source = source;
+            if (servfail) {
+                suppressedServfail++;
+            }
+            else {
+                suppressedNxdomain++;
+            }
+            if (samples.size() < MAX_SAMPLES) {
+                samples.add(qname);
+            }
+        }
+
+        /**
+         * Returns the summary and resets the counters.
+         */
+        public synchronized Summary takeSummary() {
+            final Summary summary = new Summary(name, source, storm, suppressedNxdomain, suppressedServfail,
+                                                new ArrayList<>(samples));
+            suppressedNxdomain = 0;
+            suppressedServfail = 0;
+            samples.clear();
+            return summary;
+        }
+    }
+
+    public static class Summary {
+        public final String domain;
+        // Source of the last suppressed response
+        public final String source;
+        public final boolean active;
+        public final long nxdomain;
+        public final long servfail;
+        public final List<String> samples;
+
+        private Summary(final String domain,
+                        final String source,
+                        final boolean active,
+                        final long nxdomain,
+                        final long servfail,
+                        final List<String> samples) {
+            this.domain   = domain;
+            this.source   = source;
+            this.active   = active;
+            this.nxdomain = nxdomain;
+            this.servfail = servfail;
+            this.samples  = samples;
+        }
+    }
+
+
+    /**
+     * Node wide detectors shared by codec instances with the same settings.
+     */
+    @Singleton
+    public static class Registry {
+        private final LoadingCache<Settings, ErrorStormDetector> detectors = CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(new CacheLoader<Settings, ErrorStormDetector>() {
+                    @Override
+                    public ErrorStormDetector load(final Settings settings) {
+                        return new ErrorStormDetector(settings.threshold, settings.windowSec, settings.summaryIntervalSec);
+                    }
+                });
+
+        public ErrorStormDetector get(final int threshold,
+                                      final int windowSec,
+                                      final int summaryIntervalSec) {
+            return detectors.getUnchecked(new Settings(threshold, windowSec, summaryIntervalSec));
+        }
+    }
+
+    private static class Settings {
+        private final int threshold;
+        private final int windowSec;
+        private final int summaryIntervalSec;
+
+        private Settings(final int threshold, final int windowSec, final int summaryIntervalSec) {
+            this.threshold          = threshold;
+            this.windowSec          = windowSec;
+            this.summaryIntervalSec = summaryIntervalSec;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            final Settings that = (Settings) o;
+            return threshold == that.threshold
+                && windowSec == that.windowSec
+                && summaryIntervalSec == that.summaryIntervalSec;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(threshold, windowSec, summaryIntervalSec);
+        }
+    }
+}
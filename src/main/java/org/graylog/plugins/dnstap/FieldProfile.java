@@ -0,0 +1,360 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.dnstap.protos.DnstapOuterClass;
+import org.graylog2.plugin.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.ExtendedFlags;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+    Message fields emitted per frame, compiled from a declarative profile.
+
+    A profile is the name of a built-in profile (minimal, default, forensic)
+    or a comma separated list of extractors, each optionally renamed with
+    "extractor=field". Extractors write "dnstap_" + their name by default.
+    The profile is compiled once into an array of extractors, so a field
+    that is not in it is never computed.
+
+    Compact output picks the numeric variant of an extractor when there
+    is one, disabled fields are dropped at compile time.
+*/
+public class FieldProfile {
+    private static final Logger Log = LoggerFactory.getLogger(FieldProfile.class);
+
+    public static final String MINIMAL  = "minimal";
+    public static final String DEFAULT  = "default";
+    public static final String FORENSIC = "forensic";
+
+    /**
+     * Everything known about the frame being decoded.
+     */
+    public static class Frame {
+        public DnstapOuterClass.Message     message;
+        public Helper.DNSMessage            dns;
+        public DnstapIdentityCache.Identity identity;
+        public long                         execTime;
+        public String                       queryAddr;
+        public String                       querySubnet;
+
+        public void clear() {
+            message     = null;
+            dns         = null;
+            identity    = null;
+            execTime    = -1;
+            queryAddr   = null;
+            querySubnet = null;
+        }
+    }
+
+    /**
+     * Returns the value of the field, or null to leave it out.
+     */
+    private interface Extractor {
+        Object extract(Frame frame);
+    }
+
+    private static final Map<String, Extractor> EXTRACTORS = ImmutableMap.<String, Extractor>builder()
+        .put("full_message"    , f -> f.dns.getFullMessage())
+        .put("exec_time"       , f -> (f.execTime >= 0) ? f.execTime : null)
+        .put("exec_time_us"    , f -> positive(Helper.getExecTimeUsec(f.message)))
+        .put("time_us"         , f -> positive(Helper.getTimeUsec(f.message)))
+        .put("time_ns"         , f -> positive(Helper.getTimeNsec(f.message)))
+        .put("identity"        , f -> f.identity.identity)
+        .put("version"         , f -> f.identity.version)
+        .put("type"            , f -> f.message.getType().toString())
+        .put("sock_family"     , f -> f.message.getSocketFamily().toString())
+        .put("sock_proto"      , f -> f.message.getSocketProtocol().toString())
+        .put("query_addr"      , f -> f.queryAddr)
+        .put("query_port"      , f -> (f.queryAddr != null) ? f.message.getQueryPort() : null)
+        .put("query_subnet"    , f -> f.querySubnet)
+        .put("resp_addr"       , f -> Helper.prepareIpAddress(f.message.getResponseAddress()))
+        .put("resp_port"       , f -> f.message.hasResponseAddress() ? f.message.getResponsePort() : null)
+        .put("size"            , f -> f.dns.size)
+        .put("id"              , f -> f.dns.id)
+        .put("flags"           , f -> f.dns.flags)
+        .put("rcode"           , f -> f.dns.rcode)
+        .put("opcode"          , f -> f.dns.opcode)
+        .put("qname"           , f -> f.dns.questName)
+        .put("qtype"           , f -> f.dns.questType)
+        .put("qdclass"         , f -> f.dns.questDClass)
+        .put("num_questions"   , f -> f.dns.numQuestions)
+        .put("num_answers"     , f -> f.dns.numAnswers)
+        .put("num_authorities" , f -> f.dns.numAuthorities)
+        .put("num_additionals" , f -> f.dns.numAdditionals)
+        .put("num_zones"       , f -> f.dns.numZones)
+        .put("num_prereqs"     , f -> f.dns.numPrereqs)
+        .put("num_updates"     , f -> f.dns.numUpdates)
+        // Lists become arrays in Elasticsearch, so a single answer matches exactly
+        .put("answers"         , f -> answers(f.dns))
+        .put("answer_types"    , f -> f.dns.answerTypes)
+        .put("answer_min_ttl"  , f -> (f.dns.answerTypes != null) ? f.dns.answerMinTtl : null)
+        .put("ttl_min"         , f -> (f.dns.ttlMin >= 0) ? f.dns.ttlMin : null)
+        .put("ttl_max"         , f -> (f.dns.ttlMax >= 0) ? f.dns.ttlMax : null)
+        .put("authorities"     , f -> renderSection(f.dns, Section.AUTHORITY))
+        .put("additionals"     , f -> renderSection(f.dns, Section.ADDITIONAL))
+        .put("edns_udp_size"   , f -> (f.dns._dns.getOPT() != null) ? f.dns._dns.getOPT().getPayloadSize() : null)
+        .put("edns_do"         , f -> ednsDo(f.dns._dns.getOPT()))
+        .build();
+
+    // Numeric variants used by compact output
+    private static final Map<String, Extractor> COMPACT_EXTRACTORS = ImmutableMap.<String, Extractor>builder()
+        .put("type"            , f -> f.message.getType().getNumber())
+        .put("sock_family"     , f -> f.message.getSocketFamily().getNumber())
+        .put("sock_proto"      , f -> f.message.getSocketProtocol().getNumber())
+        .put("rcode"           , f -> f.dns.rcodeValue)
+        .put("opcode"          , f -> f.dns.opcodeValue)
+        .put("qtype"           , f -> f.dns.questTypeValue)
+        .put("qdclass"         , f -> f.dns.questDClassValue)
+        .put("num_questions"   , f -> nonZero(f.dns.numQuestions))
+        .put("num_answers"     , f -> nonZero(f.dns.numAnswers))
+        .put("num_authorities" , f -> nonZero(f.dns.numAuthorities))
+        .put("num_additionals" , f -> nonZero(f.dns.numAdditionals))
+        // Same header words as question, answer and authority counts
+        .put("num_zones"       , f -> null)
+        .put("num_prereqs"     , f -> null)
+        .put("num_updates"     , f -> null)
+        .build();
+
+    // Numeric codes get their own fields, a field keeps one type in the index
+    private static final Map<String, String> COMPACT_FIELDS = ImmutableMap.<String, String>builder()
+        .put("type"            , "dnstap_type_num")
+        .put("sock_family"     , "dnstap_sock_family_num")
+        .put("sock_proto"      , "dnstap_sock_proto_num")
+        .put("rcode"           , "dnstap_rcode_code")
+        .put("opcode"          , "dnstap_opcode_code")
+        .put("qtype"           , "dnstap_qtype_num")
+        .put("qdclass"         , "dnstap_qdclass_num")
+        .build();
+
+    // Fields of the codec before profiles, newer ones are opt-in
+    private static final String DEFAULT_FIELDS = "full_message, exec_time, type, sock_family, sock_proto, "
+        + "query_addr, query_port, query_subnet, resp_addr, resp_port, size, id, flags, rcode, opcode, qname, qtype, qdclass, "
+        + "num_questions, num_answers, num_authorities, num_additionals, num_zones, num_prereqs, num_updates";
+
+    // Parse stages of the DNS message the extractors read, see Helper.DNSMessage.parse
+    private static final Map<String, Integer> STAGES = ImmutableMap.<String, Integer>builder()
+        .put("flags"           , Helper.PARSE_FLAGS)
+        .put("answers"         , Helper.PARSE_ANSWERS)
+        .put("answer_types"    , Helper.PARSE_ANSWER_TYPES)
+        .put("answer_min_ttl"  , Helper.PARSE_ANSWER_TYPES)
+        .put("ttl_min"         , Helper.PARSE_TTLS)
+        .put("ttl_max"         , Helper.PARSE_TTLS)
+        .build();
+
+    private static final Map<String, String> BUILT_IN = ImmutableMap.of(
+        MINIMAL , "exec_time, identity, type, query_addr, query_subnet, qname, qtype, rcode, answers",
+        DEFAULT , DEFAULT_FIELDS,
+        FORENSIC, DEFAULT_FIELDS + ", exec_time_us, time_us, time_ns, identity, version, "
+            + "answers, answer_types, answer_min_ttl, ttl_min, ttl_max, authorities, additionals, edns_udp_size, edns_do"
+    );
+
+    private final String[] fields;
+    private final Extractor[] extractors;
+    private final int stages;
+
+    private FieldProfile(final String[] fields, final Extractor[] extractors, final int stages) {
+        this.fields     = fields;
+        this.extractors = extractors;
+        this.stages     = stages;
+    }
+
+    /**
+     * Returns the {@code Helper.PARSE_*} stages the fields of the profile need.
+     */
+    public int stages() {
+        return stages;
+    }
+
+    public void apply(final Frame frame, final Message msg) {
+        for (int i = 0; i < extractors.length; i++) {
+            final Object value = extractors[i].extract(frame);
+            if (value != null) {
+                msg.addField(fields[i], value);
+            }
+        }
+    }
+
+    static FieldProfile compile(final String profile,
+                                final boolean compact,
+                                final boolean withoutFullMessage,
+                                final Set<String> disabledFields) {
+        final String spec = BUILT_IN.getOrDefault(profile.trim().toLowerCase(Locale.ENGLISH), profile);
+        final List<String> fields = new ArrayList<>();
+        final List<Extractor> extractors = new ArrayList<>();
+        int stages = 0;
+        for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(spec)) {
+            final int eq = entry.indexOf('=');
+            final String name = (eq < 0) ? entry : entry.substring(0, eq).trim();
+            final Extractor extractor = (compact && COMPACT_EXTRACTORS.containsKey(name))
+                ? COMPACT_EXTRACTORS.get(name)
+                : EXTRACTORS.get(name);
+            if (extractor == null) {
+                Log.warn("Unknown field extractor <{}> in profile <{}>", name, profile);
+                continue;
+            }
+            final String field;
+            if (eq >= 0) {
+                field = entry.substring(eq + 1).trim();
+            } else if (compact && COMPACT_FIELDS.containsKey(name)) {
+                field = COMPACT_FIELDS.get(name);
+            } else {
+                field = name.equals("full_message") ? name : "dnstap_" + name;
+            }
+            if (disabledFields.contains(field) || (withoutFullMessage && name.equals("full_message"))) {
+                continue;
+            }
+            fields.add(field);
+            extractors.add(extractor);
+            stages |= STAGES.getOrDefault(name, 0);
+        }
+        return new FieldProfile(fields.toArray(new String[fields.size()]),
+                                extractors.toArray(new Extractor[extractors.size()]),
+                                stages);
+    }
+
+    private static Integer nonZero(final int value) {
+        return (value != 0) ? value : null;
+    }
+
+    private static List<String> answers(final Helper.DNSMessage dns) {
+        return (dns.getType() == Helper.DnsFrameType.RESPONSE && !dns.listOfAnswersData.isEmpty())
+            ? dns.listOfAnswersData
+            : null;
+    }
+
+    private static Long positive(final long value) {
+        return (value >= 0) ? value : null;
+    }
+
+    private static Boolean ednsDo(final OPTRecord opt) {
+        return (opt != null) ? (opt.getFlags() & ExtendedFlags.DO) != 0 : null;
+    }
+
+    private static String renderSection(final Helper.DNSMessage dns, final int section) {
+        final Record[] records = dns._dns.getSectionArray(section);
+        if (records.length == 0) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (Record rr : records) {
+            if (rr instanceof OPTRecord) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(rr.toString());
+        }
+        return (sb.length() > 0) ? sb.toString() : null;
+    }
+
+
+    private static BitSet parseRcodes(final String rcodes) {
+        final BitSet result = new BitSet();
+        for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(rcodes)) {
+            final int rcode = Rcode.value(name);
+            if (rcode >= 0) {
+                result.set(rcode);
+            }
+            else {
+                Log.warn("Unknown rcode <{}> in capture rcodes", name);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Compiled profiles and capture rcodes shared by codec instances, which
+     * Graylog creates per message. Unknown names are logged once per setting.
+     */
+    @Singleton
+    public static class Registry {
+        private final LoadingCache<Settings, FieldProfile> profiles = CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(new CacheLoader<Settings, FieldProfile>() {
+                    @Override
+                    public FieldProfile load(final Settings settings) {
+                        return compile(settings.profile, settings.compact, settings.withoutFullMessage, settings.disabledFields);
+                    }
+                });
+        private final LoadingCache<String, BitSet> rcodes = CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(new CacheLoader<String, BitSet>() {
+                    @Override
+                    public BitSet load(final String names) {
+                        return parseRcodes(names);
+                    }
+                });
+
+        public FieldProfile get(final String profile,
+                                final boolean compact,
+                                final boolean withoutFullMessage,
+                                final Set<String> disabledFields) {
+            return profiles.getUnchecked(new Settings(profile, compact, withoutFullMessage, disabledFields));
+        }
+
+        /**
+         * Returns the comma separated rcodes as a set, not to be modified.
+         */
+        public BitSet rcodes(final String names) {
+            return this.rcodes.getUnchecked(names);
+        }
+    }
+
+    private static class Settings {
+        private final String profile;
+        private final boolean compact;
+        private final boolean withoutFullMessage;
+        private final Set<String> disabledFields;
+
+        private Settings(final String profile,
+                         final boolean compact,
+                         final boolean withoutFullMessage,
+                         final Set<String> disabledFields) {
+            this.profile            = profile;
+            this.compact            = compact;
+            this.withoutFullMessage = withoutFullMessage;
+            this.disabledFields     = disabledFields;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            final Settings that = (Settings) o;
+            return compact == that.compact
+                && withoutFullMessage == that.withoutFullMessage
+                && profile.equals(that.profile)
+                && disabledFields.equals(that.disabledFields);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(profile, compact, withoutFullMessage, disabledFields);
+        }
+    }
+}
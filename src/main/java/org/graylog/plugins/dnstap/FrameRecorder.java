@@ -0,0 +1,163 @@
+package org.graylog.plugins.dnstap;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.io.BaseEncoding;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed size ring of the last frames received on a fstrm connection.
+ * All storage is allocated up front, recording a frame only copies
+ * its header and an optional payload prefix into the arrays.
+ * Frames and prefix length are capped, the arrays are sized from them.
+ */
+public class FrameRecorder {
+    public static final int KIND_DATA    = 0;
+    public static final int KIND_CONTROL = 1;
+    public static final int MAX_CAPACITY      = 1024;
+    public static final int MAX_PREFIX_LENGTH = 256;
+    // The control type is counted in the size of a control frame
+    private static final int CONTROL_TYPE_SIZE = 4;
+
+    private final int    id;
+    private final String remoteAddress;
+    private final long   connectedAt;
+    private final int    capacity;
+    private final int    prefixLength;
+
+    private final long[] timestamps;
+    private final byte[] kinds;
+    private final int[]  sizes;
+    private final int[]  controlTypes;
+    private final int[]  prefixLengths;
+    private final byte[] prefixes;
+    private long         recorded = 0;
+
+    public FrameRecorder(final int id,
+                         final String remoteAddress,
+                         final int capacity,
+                         final int prefixLength) {
+        this.id            = id;
+        this.remoteAddress = remoteAddress;
+        this.connectedAt   = System.currentTimeMillis();
+        this.capacity      = Math.max(1, Math.min(capacity, MAX_CAPACITY));
+        this.prefixLength  = Math.max(0, Math.min(prefixLength, MAX_PREFIX_LENGTH));
+        this.timestamps    = new long[this.capacity];
+        this.kinds         = new byte[this.capacity];
+        this.sizes         = new int[this.capacity];
+        this.controlTypes  = new int[this.capacity];
+        this.prefixLengths = new int[this.capacity];
+        this.prefixes      = new byte[this.capacity * this.prefixLength];
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public synchronized void recordData(final int size,
+                                        final ChannelBuffer payload,
+                                        final int payloadIndex) {
+        record(KIND_DATA, size, 0, payload, payloadIndex, size);
+    }
+
+    public synchronized void recordControl(final int size,
+                                           final int controlType,
+                                           final ChannelBuffer payload,
+                                           final int payloadIndex) {
+        record(KIND_CONTROL, size, controlType, payload, payloadIndex, size - CONTROL_TYPE_SIZE);
+    }
+
+    private void record(final int kind,
+                        final int size,
+                        final int controlType,
+                        final ChannelBuffer payload,
+                        final int payloadIndex,
+                        final int payloadLength) {
+        final int slot = (int) (recorded++ % capacity);
+        timestamps[slot]   = System.currentTimeMillis();
+        kinds[slot]        = (byte) kind;
+        sizes[slot]        = size;
+        controlTypes[slot] = controlType;
+        int length = 0;
+        if (prefixLength > 0 && payload != null) {
+            // Only bytes of this frame, the buffer may already hold the next ones
+            length = Math.max(0, Math.min(Math.min(prefixLength, payloadLength), payload.writerIndex() - payloadIndex));
+            payload.getBytes(payloadIndex, prefixes, slot * prefixLength, length);
+        }
+        prefixLengths[slot] = length;
+    }
+
+    /**
+     * Copies the recorded frames out of the ring, newest first.
+     */
+    public synchronized Snapshot snapshot() {
+        final long oldest = Math.max(0, recorded - capacity);
+        final List<Frame> frames = new ArrayList<>((int) (recorded - oldest));
+        for (long i = recorded - 1; i >= oldest; i--) {
+            final int slot = (int) (i % capacity);
+            final byte[] prefix = Arrays.copyOfRange(prefixes, slot * prefixLength,
+                                                     slot * prefixLength + prefixLengths[slot]);
+            frames.add(new Frame(new DateTime(timestamps[slot]),
+                                 (kinds[slot] == KIND_CONTROL) ? "control" : "data",
+                                 sizes[slot],
+                                 controlTypes[slot],
+                                 BaseEncoding.base16().lowerCase().encode(prefix)));
+        }
+        return new Snapshot(id, remoteAddress, new DateTime(connectedAt), recorded, frames);
+    }
+
+
+    public static class Snapshot {
+        @JsonProperty("id")
+        public final int id;
+        @JsonProperty("remote_address")
+        public final String remoteAddress;
+        @JsonProperty("connected_at")
+        public final DateTime connectedAt;
+        @JsonProperty("frames_total")
+        public final long framesTotal;
+        @JsonProperty("frames")
+        public final List<Frame> frames;
+
+        private Snapshot(final int id,
+                         final String remoteAddress,
+                         final DateTime connectedAt,
+                         final long framesTotal,
+                         final List<Frame> frames) {
+            this.id            = id;
+            this.remoteAddress = remoteAddress;
+            this.connectedAt   = connectedAt;
+            this.framesTotal   = framesTotal;
+            this.frames        = frames;
+        }
+    }
+
+    public static class Frame {
+        @JsonProperty("timestamp")
+        public final DateTime timestamp;
+        @JsonProperty("kind")
+        public final String kind;
+        @JsonProperty("size")
+        public final int size;
+        @JsonProperty("control_type")
+        public final int controlType;
+        @JsonProperty("payload_prefix")
+        public final String payloadPrefix;
+
+        private Frame(final DateTime timestamp,
+                      final String kind,
+                      final int size,
+                      final int controlType,
+                      final String payloadPrefix) {
+            this.timestamp     = timestamp;
+            this.kind          = kind;
+            this.size          = size;
+            this.controlType   = controlType;
+            this.payloadPrefix = payloadPrefix;
+        }
+    }
+}
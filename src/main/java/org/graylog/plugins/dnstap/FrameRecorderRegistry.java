@@ -0,0 +1,35 @@
+package org.graylog.plugins.dnstap;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Frame recorders of the live fstrm connections on this node.
+ */
+@Singleton
+public class FrameRecorderRegistry {
+    private final ConcurrentMap<Integer, FrameRecorder> recorders = new ConcurrentHashMap<>();
+
+    public void register(final FrameRecorder recorder) {
+        recorders.put(recorder.getId(), recorder);
+    }
+
+    public void unregister(final FrameRecorder recorder) {
+        recorders.remove(recorder.getId(), recorder);
+    }
+
+    public FrameRecorder get(final int id) {
+        return recorders.get(id);
+    }
+
+    public List<FrameRecorder.Snapshot> snapshots() {
+        final List<FrameRecorder.Snapshot> result = new ArrayList<>(recorders.size());
+        for (FrameRecorder recorder : recorders.values()) {
+            result.add(recorder.snapshot());
+        }
+        return result;
+    }
+}
@@ -1,15 +1,19 @@
 package org.graylog.plugins.dnstap;
 
-import com.google.common.io.ByteStreams;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
     https://github.com/farsightsec/fstrm/
@@ -37,6 +41,17 @@ import java.io.InputStream;
         FType - Field type
         FData - Field data (e.g. content type)
 
+    Reader states (bidirectional mode adds READY/ACCEPT and STOP/FINISH):
+        OPENED  --READY/ACCEPT-->  ACCEPTED
+        OPENED  ----START------->  STARTED   (unidirectional, e.g. socat from a file)
+        ACCEPTED ---START------->  STARTED
+        STARTED ----STOP/FINISH->  STOPPED   (channel is closed, FINISH only if bidirectional)
+
+    Data frames are only allowed in STARTED state. A connection which does
+    not reach STARTED within the handshake timeout is closed. Data frames bigger than
+    the limit are skipped without being buffered, and the connection is
+    closed if more than the allowed amount of bytes is pending.
+
 */
 
 public class FstrmFrameDecoder extends FrameDecoder {
@@ -52,10 +67,83 @@ public class FstrmFrameDecoder extends FrameDecoder {
     private static final int FSTRM_CONTROL_READY  = 0x04;
     private static final int FSTRM_CONTROL_FINISH = 0x05;
 
-    private int frameSize;
+    private static final int FSTRM_CONTROL_FIELD_CONTENT_TYPE = 0x01;
+
+    private static final byte[] DNSTAP_CONTENT_TYPE = "protobuf:dnstap.Dnstap".getBytes(StandardCharsets.US_ASCII);
+
+    private enum State {
+        OPENED,
+        ACCEPTED,
+        STARTED,
+        STOPPED
+    }
+
+    private final FrameRecorderRegistry recorders;
+    private final int recorderFrames;
+    private final int recorderPrefix;
+    private final long maxFrameSize;
+    private final int maxBufferedBytes;
+    private final FstrmMetrics metrics;
+    private final Timer timer;
+    private final int handshakeTimeout;
+    private FrameRecorder recorder;
+    private Timeout handshakeTimer;
+    private volatile State state = State.OPENED;
+    private boolean bidirectional = false;
+    private long bytesToDiscard = 0;
 
-    public FstrmFrameDecoder() {
+    public FstrmFrameDecoder(final FrameRecorderRegistry recorders,
+                             final int recorderFrames,
+                             final int recorderPrefix,
+                             final long maxFrameSize,
+                             final int maxBufferedBytes,
+                             final FstrmMetrics metrics,
+                             final Timer timer,
+                             final int handshakeTimeout) {
         super(true);
+        this.recorders        = recorders;
+        this.recorderFrames   = recorderFrames;
+        this.recorderPrefix   = recorderPrefix;
+        this.maxFrameSize     = maxFrameSize;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.metrics          = metrics;
+        this.timer            = timer;
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    @Override
+    public void channelConnected(final ChannelHandlerContext ctx,
+                                 final ChannelStateEvent e) throws Exception {
+        if (recorderFrames > 0) {
+            final Channel channel = e.getChannel();
+            recorder = new FrameRecorder(channel.getId(), String.valueOf(channel.getRemoteAddress()),
+                                         recorderFrames, recorderPrefix);
+            recorders.register(recorder);
+        }
+        if (handshakeTimeout > 0) {
+            final Channel channel = e.getChannel();
+            handshakeTimer = timer.newTimeout(timeout -> {
+                if (state == State.OPENED || state == State.ACCEPTED) {
+                    Log.debug("Closing fstrm connection {}: no START within {}s",
+                              channel.getRemoteAddress(), handshakeTimeout);
+                    metrics.handshakeTimeout();
+                    channel.close();
+                }
+            }, handshakeTimeout, TimeUnit.SECONDS);
+        }
+        super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+                              final ChannelStateEvent e) throws Exception {
+        if (recorder != null) {
+            recorders.unregister(recorder);
+        }
+        if (handshakeTimer != null) {
+            handshakeTimer.cancel();
+        }
+        super.channelClosed(ctx, e);
     }
 
     @Override
@@ -63,13 +151,31 @@ public class FstrmFrameDecoder extends FrameDecoder {
     ChannelBuffer decode(final ChannelHandlerContext ctx,
                          final Channel channel,
                          final ChannelBuffer buffer) throws Exception {
+        // Nothing is expected after STOP
+        if (state == State.STOPPED) {
+            buffer.skipBytes(buffer.readableBytes());
+            return null;
+        }
+        // Skipping the rest of an oversized frame
+        if (bytesToDiscard > 0) {
+            final int skip = (int) Math.min(bytesToDiscard, buffer.readableBytes());
+            buffer.skipBytes(skip);
+            bytesToDiscard -= skip;
+            return null;
+        }
+        final int buffered = buffer.readableBytes();
+        metrics.bufferedBytes(buffered);
+        if (buffered > maxBufferedBytes) {
+            metrics.connectionOverflowed();
+            return protocolError(channel, buffer, "more than " + maxBufferedBytes + " bytes buffered");
+        }
         // We need at least 4 bytes
         if (buffer.readableBytes() < 4) {
             return null;
         }
         buffer.markReaderIndex();
         // Read next frame size
-        final int frameSize = (int) buffer.readUnsignedInt();
+        final long frameSize = buffer.readUnsignedInt();
         Log.trace("Received frame size {}", frameSize);
         // Have we got a control frame?
         if (frameSize == CONTROL_FRAME_MARKER) {
@@ -79,13 +185,28 @@ public class FstrmFrameDecoder extends FrameDecoder {
             }
             return null;
         }
+        if (state != State.STARTED) {
+            return protocolError(channel, buffer, "data frame before START");
+        }
+        if (frameSize > maxFrameSize) {
+            Log.debug("Skipping data frame of {} bytes from {}", frameSize, channel.getRemoteAddress());
+            metrics.frameRejected();
+            if (recorder != null) {
+                recorder.recordData((int) Math.min(frameSize, Integer.MAX_VALUE), null, 0);
+            }
+            bytesToDiscard = frameSize;
+            return null;
+        }
         // The buffer has not enough data
         if (buffer.readableBytes() < frameSize) {
             buffer.resetReaderIndex();
             return null;
         }
         else {
-            final ChannelBuffer payload = buffer.readSlice(frameSize);
+            if (recorder != null) {
+                recorder.recordData((int) frameSize, buffer, buffer.readerIndex());
+            }
+            final ChannelBuffer payload = buffer.readSlice((int) frameSize);
             Log.trace("Received data frame");
             return payload;
         }
@@ -93,55 +214,156 @@ public class FstrmFrameDecoder extends FrameDecoder {
 
 
     private boolean handleControlFrame(final Channel channel,
-                                     final ChannelBuffer buffer) throws Exception {
+                                       final ChannelBuffer buffer) {
         // We need at least 4 bytes
         if (buffer.readableBytes() < 4) {
             return false;
         }
         final int controlSize = (int) buffer.readUnsignedInt();
         Log.trace("Received control frame with size {}", controlSize);
-        if (controlSize > CONTROL_FRAME_LENGTH_MAX) {
-            throw new Exception("Too big control frame size");
+        if (controlSize < 4 || controlSize > CONTROL_FRAME_LENGTH_MAX) {
+            protocolError(channel, buffer, "invalid control frame size " + controlSize);
+            return true;
         }
         if (buffer.readableBytes() < controlSize) {
             return false;
         }
         final int controlType = (int) buffer.readUnsignedInt();
         Log.trace("Received control frame #{}", controlType);
-        final int payloadSize = controlSize - 4;
-        byte[] payload = new byte[payloadSize];
-        buffer.readBytes(payload, 0, payloadSize);
+        if (recorder != null) {
+            recorder.recordControl(controlSize, controlType, buffer, buffer.readerIndex());
+        }
+        final ChannelBuffer fields = buffer.readSlice(controlSize - 4);
         //
         switch (controlType) {
+            case FSTRM_CONTROL_READY:
+                if (state != State.OPENED) {
+                    protocolError(channel, buffer, "unexpected READY in state " + state);
+                    break;
+                }
+                // Accept if the writer offers no content type or offers ours
+                final ContentTypes offered = readContentTypes(fields);
+                if (offered == null) {
+                    protocolError(channel, buffer, "malformed READY frame");
+                }
+                else if (offered.count > 0 && !offered.hasDnstap) {
+                    protocolError(channel, buffer, "no supported content type in READY");
+                }
+                else {
+                    sendControl(channel, FSTRM_CONTROL_ACCEPT, offered.count > 0);
+                    state = State.ACCEPTED;
+                    bidirectional = true;
+                }
+                break;
             case FSTRM_CONTROL_START:
-            case FSTRM_CONTROL_STOP:
+                if (state != State.OPENED && state != State.ACCEPTED) {
+                    protocolError(channel, buffer, "unexpected START in state " + state);
+                    break;
+                }
+                // START carries at most one content type
+                final ContentTypes started = readContentTypes(fields);
+                if (started == null || started.count > 1 || (started.count == 1 && !started.hasDnstap)) {
+                    protocolError(channel, buffer, "unsupported content type in START");
+                }
+                else {
+                    state = State.STARTED;
+                    if (handshakeTimer != null) {
+                        handshakeTimer.cancel();
+                    }
+                }
                 break;
-            case FSTRM_CONTROL_READY:
-                sendAccept(channel, payload, payloadSize);
+            case FSTRM_CONTROL_STOP:
+                if (state != State.STARTED) {
+                    protocolError(channel, buffer, "unexpected STOP in state " + state);
+                    break;
+                }
+                state = State.STOPPED;
+                buffer.skipBytes(buffer.readableBytes());
+                // A unidirectional writer does not read, FINISH would only fail or block
+                if (bidirectional) {
+                    Log.trace("Sending Finish on channel {}", channel);
+                    channel.write(controlFrame(FSTRM_CONTROL_FINISH, false)).addListener(ChannelFutureListener.CLOSE);
+                }
+                else {
+                    channel.close();
+                }
                 break;
             case FSTRM_CONTROL_ACCEPT:
             case FSTRM_CONTROL_FINISH:
+                // Only the reader sends these
+                protocolError(channel, buffer, "unexpected control frame #" + controlType);
                 break;
             default:
-                throw new Exception("Unknown control frame type");
+                protocolError(channel, buffer, "unknown control frame type #" + controlType);
         }
         //
         return true;
     }
 
-    private void sendAccept(final Channel channel,
-                            final byte[] payload,
-                            final int payloadSize) throws IOException {
-        final int controlSize = 4 + payloadSize;
+    private ContentTypes readContentTypes(final ChannelBuffer fields) {
+        final ContentTypes result = new ContentTypes();
+        while (fields.readable()) {
+            if (fields.readableBytes() < 8) {
+                return null;
+            }
+            final int fieldType   = (int) fields.readUnsignedInt();
+            final int fieldLength = (int) fields.readUnsignedInt();
+            if (fieldLength < 0 || fieldLength > fields.readableBytes()) {
+                return null;
+            }
+            if (fieldType != FSTRM_CONTROL_FIELD_CONTENT_TYPE) {
+                fields.skipBytes(fieldLength);
+                continue;
+            }
+            if (fieldLength > CONTROL_FIELD_CONTENT_TYPE_LENGTH_MAX) {
+                return null;
+            }
+            final byte[] contentType = new byte[fieldLength];
+            fields.readBytes(contentType);
+            result.count++;
+            result.hasDnstap |= Arrays.equals(contentType, DNSTAP_CONTENT_TYPE);
+        }
+        return result;
+    }
+
+    private ChannelBuffer protocolError(final Channel channel,
+                                        final ChannelBuffer buffer,
+                                        final String reason) {
+        Log.warn("Closing fstrm connection {}: {}", channel.getRemoteAddress(), reason);
+        state = State.STOPPED;
+        buffer.skipBytes(buffer.readableBytes());
+        channel.close();
+        return null;
+    }
+
+    private void sendControl(final Channel channel,
+                             final int controlType,
+                             final boolean withContentType) {
+        Log.trace("Sending control frame #{} on channel {}", controlType, channel);
+        channel.write(controlFrame(controlType, withContentType));
+    }
+
+    private static ChannelBuffer controlFrame(final int controlType,
+                                              final boolean withContentType) {
+        final int fieldsSize  = withContentType ? (4 + 4 + DNSTAP_CONTENT_TYPE.length) : 0;
+        final int controlSize = 4 + fieldsSize;
         final int bufferSize  = 4 + 4 + controlSize;
         final ChannelBuffer buffer = ChannelBuffers.buffer(bufferSize);
         buffer.writeInt(CONTROL_FRAME_MARKER);
         buffer.writeInt(controlSize);
-        buffer.writeInt(FSTRM_CONTROL_ACCEPT);
-        buffer.writeBytes(payload, 0, payloadSize);
-        //
-        Log.trace("Sending Accept on channel {}", channel);
-        channel.write(buffer);
+        buffer.writeInt(controlType);
+        if (withContentType) {
+            buffer.writeInt(FSTRM_CONTROL_FIELD_CONTENT_TYPE);
+            buffer.writeInt(DNSTAP_CONTENT_TYPE.length);
+            buffer.writeBytes(DNSTAP_CONTENT_TYPE);
+        }
+        return buffer;
+    }
+
+
+    private static class ContentTypes {
+        private int     count     = 0;
+        private boolean hasDnstap = false;
     }
 
 }
@@ -0,0 +1,33 @@
+package org.graylog.plugins.dnstap;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.timeout.IdleState;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes fstrm connections which did not send anything for the idle timeout.
+ */
+public class FstrmIdleHandler extends IdleStateAwareChannelHandler {
+    private static final Logger Log = LoggerFactory.getLogger(FstrmIdleHandler.class);
+
+    private final FstrmMetrics metrics;
+
+    public FstrmIdleHandler(final FstrmMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelIdle(final ChannelHandlerContext ctx,
+                            final IdleStateEvent e) throws Exception {
+        if (e.getState() == IdleState.READER_IDLE) {
+            Log.debug("Closing idle fstrm connection {}", e.getChannel().getRemoteAddress());
+            metrics.idleTimeout();
+            e.getChannel().close();
+            return;
+        }
+        super.channelIdle(ctx, e);
+    }
+}
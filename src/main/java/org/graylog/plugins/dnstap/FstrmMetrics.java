@@ -0,0 +1,51 @@
+package org.graylog.plugins.dnstap;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Metrics of the fstrm pipeline of one input, shared by all its connections.
+ */
+public class FstrmMetrics {
+    private final Meter rejectedFrames;
+    private final Meter overflowedConnections;
+    private final Meter handshakeTimeouts;
+    private final Meter idleTimeouts;
+    private final AtomicLong peakBufferedBytes = new AtomicLong();
+
+    public FstrmMetrics(final MetricRegistry registry) {
+        this.rejectedFrames        = registry.meter(name(FstrmTransport.class, "rejected-frames"));
+        this.overflowedConnections = registry.meter(name(FstrmTransport.class, "overflowed-connections"));
+        this.handshakeTimeouts     = registry.meter(name(FstrmTransport.class, "handshake-timeouts"));
+        this.idleTimeouts          = registry.meter(name(FstrmTransport.class, "idle-timeouts"));
+        registry.register(name(FstrmTransport.class, "peak-buffered-bytes"), (Gauge<Long>) peakBufferedBytes::get);
+    }
+
+    public void frameRejected() {
+        rejectedFrames.mark();
+    }
+
+    public void connectionOverflowed() {
+        overflowedConnections.mark();
+    }
+
+    public void handshakeTimeout() {
+        handshakeTimeouts.mark();
+    }
+
+    public void idleTimeout() {
+        idleTimeouts.mark();
+    }
+
+    public void bufferedBytes(final long bytes) {
+        long peak = peakBufferedBytes.get();
+        while (bytes > peak && !peakBufferedBytes.compareAndSet(peak, bytes)) {
+            peak = peakBufferedBytes.get();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.graylog.plugins.dnstap;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Limits the rate of data frames per connection and per dnstap identity.
+ * Frames over the limit are either dropped or the connection stops being
+ * read until it is back within the rate. The identity is taken from the
+ * first data frame of the connection.
+ */
+public class FstrmRateLimiter extends SimpleChannelUpstreamHandler {
+    private static final Logger Log = LoggerFactory.getLogger(FstrmRateLimiter.class);
+
+    private static final int IDENTITY_FIELD_NUMBER = 1;
+    private static final String NO_IDENTITY = "";
+
+    public enum Action {
+        DROP,
+        PAUSE
+    }
+
+    /**
+     * Limits shared by all connections of an input.
+     */
+    public static class Limits {
+        private static final int MAX_IDENTITIES = 10_000;
+
+        private final int connectionRate;
+        private final int identityRate;
+        private final int burst;
+        private final Action action;
+        private final ConcurrentMap<String, TokenBucket> identities = new ConcurrentHashMap<>();
+
+        public Limits(final int connectionRate,
+                      final int identityRate,
+                      final int burst,
+                      final Action action) {
+            this.connectionRate = connectionRate;
+            this.identityRate   = identityRate;
+            this.burst          = burst;
+            this.action         = action;
+        }
+
+        public boolean isEnabled() {
+            return connectionRate > 0 || identityRate > 0;
+        }
+
+        private TokenBucket identityBucket(final String identity) {
+            if (identityRate <= 0 || NO_IDENTITY.equals(identity)) {
+                return null;
+            }
+            final TokenBucket bucket = identities.get(identity);
+            if (bucket != null || identities.size() >= MAX_IDENTITIES) {
+                return bucket;
+            }
+            return identities.computeIfAbsent(identity, id -> new TokenBucket(identityRate, burst));
+        }
+    }
+
+    private final Limits limits;
+    private final MetricRegistry registry;
+    private final Timer timer;
+    private TokenBucket connectionBucket;
+    private TokenBucket identityBucket;
+    private String identity;
+    private String metricPrefix;
+    private Meter frames;
+    private Meter dropped;
+    private volatile boolean paused = false;
+
+    public FstrmRateLimiter(final Limits limits,
+                            final MetricRegistry registry,
+                            final Timer timer) {
+        this.limits   = limits;
+        this.registry = registry;
+        this.timer    = timer;
+    }
+
+    @Override
+    public void channelConnected(final ChannelHandlerContext ctx,
+                                 final ChannelStateEvent e) throws Exception {
+        if (limits.connectionRate > 0) {
+            connectionBucket = new TokenBucket(limits.connectionRate, limits.burst);
+        }
+        // By channel id like the frame recorders, remote ports would make a metric per reconnect
+        metricPrefix = name(FstrmTransport.class, "connections", String.valueOf(e.getChannel().getId()));
+        frames  = registry.meter(name(metricPrefix, "frames"));
+        dropped = registry.meter(name(metricPrefix, "dropped"));
+        super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+                              final ChannelStateEvent e) throws Exception {
+        if (metricPrefix != null) {
+            registry.remove(name(metricPrefix, "frames"));
+            registry.remove(name(metricPrefix, "dropped"));
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+                                final MessageEvent e) throws Exception {
+        if (identity == null && e.getMessage() instanceof ChannelBuffer) {
+            identity = readIdentity((ChannelBuffer) e.getMessage());
+            identityBucket = limits.identityBucket(identity);
+            Log.debug("Connection {} has dnstap identity \"{}\"", e.getChannel().getRemoteAddress(), identity);
+        }
+        frames.mark();
+        switch (limits.action) {
+            case DROP:
+                if ((connectionBucket != null && !connectionBucket.tryAcquire())
+                    || (identityBucket != null && !identityBucket.tryAcquire())) {
+                    dropped.mark();
+                    return;
+                }
+                break;
+            case PAUSE:
+                long delay = 0;
+                if (connectionBucket != null) {
+                    delay = connectionBucket.acquire();
+                }
+                if (identityBucket != null) {
+                    delay = Math.max(delay, identityBucket.acquire());
+                }
+                if (delay > 0 && !paused) {
+                    pause(e.getChannel(), delay);
+                }
+                break;
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    private void pause(final Channel channel, final long delayNanos) {
+        paused = true;
+        channel.setReadable(false);
+        timer.newTimeout(timeout -> {
+            paused = false;
+            if (channel.isOpen()) {
+                channel.setReadable(true);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Reads the identity if it is the first field of the frame,
+     * as it is written by libfstrm based producers.
+     */
+    private static String readIdentity(final ChannelBuffer frame) {
+        try {
+            final CodedInputStream input = CodedInputStream.newInstance(frame.toByteBuffer());
+            final int tag = input.readTag();
+            if (WireFormat.getTagFieldNumber(tag) == IDENTITY_FIELD_NUMBER
+                && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                return input.readString();
+            }
+        }
+        catch (IOException e) {
+            Log.trace("Cannot read dnstap identity", e);
+        }
+        return NO_IDENTITY;
+    }
+}
@@ -2,12 +2,18 @@ package org.graylog.plugins.dnstap;
 
 import com.codahale.metrics.InstrumentedExecutorService;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.assistedinject.Assisted;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
+import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.inputs.transports.AbstractTcpTransport;
@@ -16,11 +22,14 @@ import org.graylog2.plugin.inputs.transports.Transport;
 import org.graylog2.plugin.inputs.util.ConnectionCounter;
 import org.graylog2.plugin.inputs.util.ThroughputCounter;
 import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.HashedWheelTimer;
 import org.jboss.netty.buffer.ChannelBuffer;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.util.LinkedHashMap;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -31,18 +40,52 @@ import org.graylog.plugins.dnstap.FstrmFrameDecoder;
 import static com.codahale.metrics.MetricRegistry.name;
 
 public class FstrmTransport extends AbstractTcpTransport {
+    public static final String CK_RECORDER_FRAMES = "recorder_frames";
+    public static final String CK_RECORDER_PAYLOAD_PREFIX = "recorder_payload_prefix";
+    public static final String CK_MAX_FRAME_SIZE = "max_frame_size";
+    public static final String CK_MAX_BUFFERED_BYTES = "max_buffered_bytes";
+    public static final String CK_HANDSHAKE_TIMEOUT = "handshake_timeout";
+    public static final String CK_IDLE_TIMEOUT = "idle_timeout";
+    public static final String CK_RATE_LIMIT_CONNECTION = "rate_limit_connection";
+    public static final String CK_RATE_LIMIT_IDENTITY = "rate_limit_identity";
+    public static final String CK_RATE_LIMIT_BURST = "rate_limit_burst";
+    public static final String CK_RATE_LIMIT_ACTION = "rate_limit_action";
+    public static final String CK_STRIP_FIELDS = "strip_fields";
+
+    private static final int DEFAULT_RECORDER_FRAMES = 32;
+    private static final int DEFAULT_RECORDER_PAYLOAD_PREFIX = 0;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_HANDSHAKE_TIMEOUT = 30;
+    private static final int DEFAULT_IDLE_TIMEOUT = 0;
+    private static final int DEFAULT_RATE_LIMIT_BURST = 1000;
+
+    private final FrameRecorderRegistry recorders;
+    private final int recorderFrames;
+    private final int recorderPrefix;
+    private final int maxFrameSize;
+    private final int maxBufferedBytes;
+    private final FstrmMetrics metrics;
+    private final int handshakeTimeout;
+    private final int idleTimeout;
+    private final FstrmRateLimiter.Limits rateLimits;
+    private final Set<DnstapFrameRewriter.Field> stripFields;
+    private HashedWheelTimer timer;
+
     @Inject
     public FstrmTransport(@Assisted Configuration configuration,
                           @Named("bossPool") Executor bossPool,
                           ThroughputCounter throughputCounter,
                           ConnectionCounter connectionCounter,
-                          LocalMetricRegistry localRegistry) {
+                          LocalMetricRegistry localRegistry,
+                          FrameRecorderRegistry recorders) {
         this(configuration,
              bossPool,
              executorService("fstrm-worker", "fstrm-transport-worker-%d", localRegistry),
              throughputCounter,
              connectionCounter,
-             localRegistry);
+             localRegistry,
+             recorders);
     }
 
     private FstrmTransport(final Configuration configuration,
@@ -50,8 +93,26 @@ public class FstrmTransport extends AbstractTcpTransport {
                            final Executor workerPool,
                            final ThroughputCounter throughputCounter,
                            final ConnectionCounter connectionCounter,
-                           final LocalMetricRegistry localRegistry) {
+                           final LocalMetricRegistry localRegistry,
+                           final FrameRecorderRegistry recorders) {
         super(configuration, throughputCounter, localRegistry, bossPool, workerPool, connectionCounter);
+        this.recorders      = recorders;
+        this.recorderFrames = configuration.getInt(CK_RECORDER_FRAMES, DEFAULT_RECORDER_FRAMES);
+        this.recorderPrefix = configuration.getInt(CK_RECORDER_PAYLOAD_PREFIX, DEFAULT_RECORDER_PAYLOAD_PREFIX);
+        this.maxFrameSize   = configuration.getInt(CK_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE);
+        // Room for at least one frame of the maximal size with its header
+        this.maxBufferedBytes = Math.max(configuration.getInt(CK_MAX_BUFFERED_BYTES, DEFAULT_MAX_BUFFERED_BYTES),
+                                         maxFrameSize + 8);
+        this.metrics        = new FstrmMetrics(localRegistry);
+        this.handshakeTimeout = configuration.getInt(CK_HANDSHAKE_TIMEOUT, DEFAULT_HANDSHAKE_TIMEOUT);
+        this.idleTimeout      = configuration.getInt(CK_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+        this.rateLimits       = new FstrmRateLimiter.Limits(
+            configuration.getInt(CK_RATE_LIMIT_CONNECTION, 0),
+            configuration.getInt(CK_RATE_LIMIT_IDENTITY, 0),
+            configuration.getInt(CK_RATE_LIMIT_BURST, DEFAULT_RATE_LIMIT_BURST),
+            FstrmRateLimiter.Action.valueOf(configuration.getString(CK_RATE_LIMIT_ACTION,
+                                                                    FstrmRateLimiter.Action.DROP.name())));
+        this.stripFields      = DnstapFrameRewriter.parseFields(configuration.getString(CK_STRIP_FIELDS));
     }
 
     private static Executor executorService(final String executorName,
@@ -64,11 +125,39 @@ public class FstrmTransport extends AbstractTcpTransport {
                 name(FstrmTransport.class, executorName, "executor-service"));
     }
 
+    @Override
+    public void launch(final MessageInput input) throws MisfireException {
+        timer = new HashedWheelTimer(new ThreadFactoryBuilder().setNameFormat("fstrm-timer-%d").setDaemon(true).build());
+        super.launch(input);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (timer != null) {
+            timer.stop();
+            timer = null;
+        }
+    }
+
     @Override
     protected LinkedHashMap<String, Callable<? extends ChannelHandler>> getFinalChannelHandlers(MessageInput input) {
         final LinkedHashMap<String, Callable<? extends ChannelHandler>> finalChannelHandlers = super.getFinalChannelHandlers(input);
         final LinkedHashMap<String, Callable<? extends ChannelHandler>> handlers = new LinkedHashMap<>();
-        handlers.put("fstrm", FstrmFrameDecoder::new);
+        final HashedWheelTimer timer = this.timer;
+        if (idleTimeout > 0) {
+            handlers.put("fstrm-idle-state", () -> new IdleStateHandler(timer, idleTimeout, 0, 0));
+            handlers.put("fstrm-idle", () -> new FstrmIdleHandler(metrics));
+        }
+        handlers.put("fstrm", () -> new FstrmFrameDecoder(recorders, recorderFrames, recorderPrefix,
+                                                          maxFrameSize, maxBufferedBytes, metrics,
+                                                          timer, handshakeTimeout));
+        if (rateLimits.isEnabled()) {
+            handlers.put("fstrm-rate-limit", () -> new FstrmRateLimiter(rateLimits, localRegistry, timer));
+        }
+        if (!stripFields.isEmpty()) {
+            handlers.put("dnstap-rewrite", () -> new DnstapFrameRewriter(stripFields));
+        }
         handlers.putAll(finalChannelHandlers);
 
         return handlers;
@@ -91,6 +180,97 @@ public class FstrmTransport extends AbstractTcpTransport {
             if (cr.containsField(NettyTransport.CK_PORT)) {
                 cr.getField(NettyTransport.CK_PORT).setDefaultValue(6000);
             }
+            //
+            cr.addField( new NumberField(
+                CK_RECORDER_FRAMES,
+                "Recorded frames per connection",
+                DEFAULT_RECORDER_FRAMES,
+                "Number of last frames kept per connection for inspection over REST, at most " + FrameRecorder.MAX_CAPACITY + ", 0 to disable",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_RECORDER_PAYLOAD_PREFIX,
+                "Recorded payload prefix",
+                DEFAULT_RECORDER_PAYLOAD_PREFIX,
+                "Number of first payload bytes kept with every recorded frame, at most " + FrameRecorder.MAX_PREFIX_LENGTH,
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_MAX_FRAME_SIZE,
+                "Max data frame size",
+                DEFAULT_MAX_FRAME_SIZE,
+                "Data frames bigger than this (bytes) are skipped without being buffered",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_MAX_BUFFERED_BYTES,
+                "Max buffered bytes per connection",
+                DEFAULT_MAX_BUFFERED_BYTES,
+                "Connection is closed when more unprocessed bytes than this are pending",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_HANDSHAKE_TIMEOUT,
+                "Handshake timeout",
+                DEFAULT_HANDSHAKE_TIMEOUT,
+                "Seconds a new connection may take to send START, 0 to disable",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_IDLE_TIMEOUT,
+                "Idle timeout",
+                DEFAULT_IDLE_TIMEOUT,
+                "Seconds without any received data after which a connection is closed, 0 to disable. Quiet resolvers may send nothing for long",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_RATE_LIMIT_CONNECTION,
+                "Rate limit per connection",
+                0,
+                "Max data frames per second from one connection, 0 for unlimited",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_RATE_LIMIT_IDENTITY,
+                "Rate limit per identity",
+                0,
+                "Max data frames per second from all connections with the same dnstap identity, 0 for unlimited",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new NumberField(
+                CK_RATE_LIMIT_BURST,
+                "Rate limit burst",
+                DEFAULT_RATE_LIMIT_BURST,
+                "Number of frames allowed above the rate in a burst",
+                ConfigurationField.Optional.OPTIONAL,
+                NumberField.Attribute.ONLY_POSITIVE
+            ));
+            cr.addField( new DropdownField(
+                CK_RATE_LIMIT_ACTION,
+                "Rate limit action",
+                FstrmRateLimiter.Action.DROP.name(),
+                ImmutableMap.of(FstrmRateLimiter.Action.DROP.name(), "Drop frames",
+                                FstrmRateLimiter.Action.PAUSE.name(), "Pause reading"),
+                "What to do with a connection over the limit",
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            cr.addField( new TextField(
+                CK_STRIP_FIELDS,
+                "Strip dnstap fields",
+                "",
+                "Comma separated fields removed before journaling: extra, query_zone, "
+                    + "query_message (only when the response message is present)",
+                ConfigurationField.Optional.OPTIONAL
+            ));
+            //
             return cr;
         }
     }
@@ -0,0 +1,231 @@
+package org.graylog.plugins.dnstap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import com.maxmind.db.Reader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+    Country and autonomous system of IP addresses from local MaxMind format
+    databases (GeoIP2/GeoLite2 Country or City, and ASN).
+
+    Databases are memory-mapped, so they are shared with the page cache
+    and not copied on the heap. Results are cached by the raw address
+    bytes as they come in the dnstap frame or DNS record, so repeated
+    addresses skip both the string formatting and the tree search.
+
+    Changed database files are reloaded in the background and swapped in
+    atomically, decoding keeps using the previous reader meanwhile.
+*/
+public class GeoIpLookup {
+    private static final Logger Log = LoggerFactory.getLogger(GeoIpLookup.class);
+    private static final Location NONE = new Location(null, 0, null);
+
+    public static class Location {
+        public final String country;
+        public final long   asn;
+        public final String asOrg;
+
+        private Location(final String country, final long asn, final String asOrg) {
+            this.country = country;
+            this.asn     = asn;
+            this.asOrg   = asOrg;
+        }
+
+        public boolean isEmpty() {
+            return country == null && asn == 0;
+        }
+    }
+
+    private final Database countryDb;
+    private final Database asnDb;
+    private final Cache<InetAddress, Location> cache;
+
+    private GeoIpLookup(final String countryPath, final String asnPath, final int cacheSize) {
+        this.countryDb = new Database(countryPath);
+        this.asnDb     = new Database(asnPath);
+        this.cache     = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    /**
+     * Returns the location of a raw 4 or 16 byte address, never null.
+     */
+    public Location lookup(final ByteString address) {
+        final InetAddress inetAddress;
+        try {
+            inetAddress = InetAddress.getByAddress(address.toByteArray());
+        }
+        catch (UnknownHostException e) {
+            return NONE;
+        }
+        return lookup(inetAddress);
+    }
+
+    /**
+     * Returns the location of the address, never null.
+     */
+    public Location lookup(final InetAddress address) {
+        final Location cached = cache.getIfPresent(address);
+        if (cached != null) {
+            return cached;
+        }
+        final Location location = resolve(address);
+        cache.put(address, location);
+        return location;
+    }
+
+    private Location resolve(final InetAddress address) {
+        final JsonNode country = countryDb.get(address);
+        final JsonNode as      = asnDb.get(address);
+        final Location location = new Location(
+            (country != null) ? country.path("country").path("iso_code").asText(null) : null,
+            (as != null) ? as.path("autonomous_system_number").asLong(0) : 0,
+            (as != null) ? as.path("autonomous_system_organization").asText(null) : null
+        );
+        return location.isEmpty() ? NONE : location;
+    }
+
+    private void reloadIfChanged() {
+        final boolean countryChanged = countryDb.reloadIfChanged();
+        final boolean asnChanged     = asnDb.reloadIfChanged();
+        if (countryChanged || asnChanged) {
+            cache.invalidateAll();
+        }
+    }
+
+
+    private static class Database {
+        private final File file;
+        private final AtomicReference<Reader> reader = new AtomicReference<>();
+        private volatile long lastModified = 0;
+
+        private Database(final String path) {
+            this.file = path.isEmpty() ? null : new File(path);
+            reloadIfChanged();
+        }
+
+        private JsonNode get(final InetAddress address) {
+            final Reader current = reader.get();
+            if (current == null) {
+                return null;
+            }
+            try {
+                return current.get(address);
+            }
+            catch (IOException e) {
+                Log.debug("Lookup of {} in {} failed", address, file, e);
+                return null;
+            }
+        }
+
+        private boolean reloadIfChanged() {
+            if (file == null) {
+                return false;
+            }
+            final long modified = file.lastModified();
+            if (modified == 0 || modified == lastModified) {
+                return false;
+            }
+            try {
+                // The replaced reader is not closed: lookups running on other threads may
+                // still use it, the mapping is released when it is garbage collected.
+                reader.set(new Reader(file, Reader.FileMode.MEMORY_MAPPED));
+                lastModified = modified;
+                Log.info("Loaded GeoIP database {}", file);
+                return true;
+            }
+            catch (IOException | RuntimeException e) {
+                Log.warn("Cannot load GeoIP database {}: {}", file, e.getMessage());
+                return false;
+            }
+        }
+    }
+
+
+    /**
+     * Node wide lookups shared by codec instances with the same databases.
+     */
+    @Singleton
+    public static class Registry {
+        private static final long RELOAD_CHECK_INTERVAL_SEC = 60;
+
+        private final LoadingCache<Settings, GeoIpLookup> lookups = CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(new CacheLoader<Settings, GeoIpLookup>() {
+                    @Override
+                    public GeoIpLookup load(final Settings settings) {
+                        return new GeoIpLookup(settings.countryPath, settings.asnPath, settings.cacheSize);
+                    }
+                });
+
+        public Registry() {
+            final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("dnstap-geoip-reload-%d").setDaemon(true).build());
+            reloader.scheduleWithFixedDelay(this::reloadChanged,
+                                            RELOAD_CHECK_INTERVAL_SEC, RELOAD_CHECK_INTERVAL_SEC, TimeUnit.SECONDS);
+        }
+
+        public GeoIpLookup get(final String countryPath, final String asnPath, final int cacheSize) {
+            return lookups.getUnchecked(new Settings(countryPath, asnPath, cacheSize));
+        }
+
+        private void reloadChanged() {
+            for (GeoIpLookup lookup : lookups.asMap().values()) {
+                try {
+                    lookup.reloadIfChanged();
+                }
+                catch (RuntimeException e) {
+                    Log.warn("GeoIP database reload failed", e);
+                }
+            }
+        }
+    }
+
+    private static class Settings {
+        private final String countryPath;
+        private final String asnPath;
+        private final int cacheSize;
+
+        private Settings(final String countryPath, final String asnPath, final int cacheSize) {
+            this.countryPath = countryPath;
+            this.asnPath     = asnPath;
+            this.cacheSize   = cacheSize;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            final Settings that = (Settings) o;
+            return cacheSize == that.cacheSize
+                && countryPath.equals(that.countryPath)
+                && asnPath.equals(that.asnPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(countryPath, asnPath, cacheSize);
+        }
+    }
+}
@@ -4,9 +4,11 @@ import org.graylog2.plugin.journal.RawMessage;
 import org.graylog2.plugin.ResolvableInetSocketAddress;
 import org.joda.time.DateTime;
 import java.net.InetAddress;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 
 
 import org.xbill.DNS.Message;
@@ -24,34 +26,72 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import org.graylog.plugins.dnstap.protos.DnstapOuterClass;
 
 public class Helper {
-    private static final Logger Log = LoggerFactory.getLogger("DnstapHelper");
+    private static final long NANO_IN_SECOND = 1_000_000_000;
 
     public enum DnsFrameType {
         UNKNOWN,
         QUERY,
         RESPONSE;
 
+        // Frame type by dnstap message type number
+        private static final DnsFrameType[] BY_MESSAGE_TYPE = new DnsFrameType[13];
+        static {
+            Arrays.fill(BY_MESSAGE_TYPE, UNKNOWN);
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.AUTH_QUERY_VALUE]         = QUERY;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.AUTH_RESPONSE_VALUE]      = RESPONSE;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.RESOLVER_QUERY_VALUE]     = QUERY;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.RESOLVER_RESPONSE_VALUE]  = RESPONSE;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.CLIENT_QUERY_VALUE]       = QUERY;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.CLIENT_RESPONSE_VALUE]    = RESPONSE;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.FORWARDER_QUERY_VALUE]    = QUERY;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.FORWARDER_RESPONSE_VALUE] = RESPONSE;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.STUB_QUERY_VALUE]         = QUERY;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.STUB_RESPONSE_VALUE]      = RESPONSE;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.TOOL_QUERY_VALUE]         = QUERY;
+            BY_MESSAGE_TYPE[DnstapOuterClass.Message.Type.TOOL_RESPONSE_VALUE]      = RESPONSE;
+        }
+
         public static DnsFrameType get(final DnstapOuterClass.Message message) {
-            switch (message.getType()) {
-                case AUTH_QUERY:
-                case RESOLVER_QUERY:
-                case CLIENT_QUERY:
-                    return QUERY;
-                case AUTH_RESPONSE:
-                case RESOLVER_RESPONSE:
-                case CLIENT_RESPONSE:
-                    return RESPONSE;
-            }
-            return UNKNOWN;
+            final int number = message.getType().getNumber();
+            return (number >= 0 && number < BY_MESSAGE_TYPE.length) ? BY_MESSAGE_TYPE[number] : UNKNOWN;
+        }
+    }
+
+
+    /**
+     * Checks that the message carries a DNS packet for its direction,
+     * so it can be rejected before any DNS parsing.
+     */
+    public static boolean isSupported(final DnstapOuterClass.Message message) {
+        switch (DnsFrameType.get(message)) {
+            case QUERY:
+                return message.hasQueryMessage();
+            case RESPONSE:
+                return message.hasResponseMessage();
+            default:
+                return false;
         }
     }
 
 
     public static DateTime getDateTime(final DnstapOuterClass.Message message,
                                        final RawMessage rawMessage) {
+        final long timeNsec = getTimeNsec(message);
+        if (timeNsec < 0) {
+            return rawMessage.getTimestamp();
+        }
+        // Rounded to milliseconds
+        return new DateTime((timeNsec + 500_000) / 1_000_000);
+    }
+
+
+    /**
+     * Query time of a query, response time of a response, in nanoseconds
+     * since the epoch, or -1 when the frame has none.
+     */
+    public static long getTimeNsec(final DnstapOuterClass.Message message) {
         long sec  = 0;
         int  nsec = 0;
-        final DateTime result;
         switch (DnsFrameType.get(message)) {
             case QUERY:
                 sec  = message.getQueryTimeSec();
@@ -62,14 +102,13 @@ public class Helper {
                 nsec = message.getResponseTimeNsec();
                 break;
         }
-        if (sec > 0) {
-            final long instant = (sec*1000) + Math.round(nsec/1e6);
-            result = new DateTime(instant);
-        }
-        else {
-            result = rawMessage.getTimestamp();
-        }
-        return result;
+        return (sec > 0) ? sec * NANO_IN_SECOND + nsec : -1;
+    }
+
+
+    public static long getTimeUsec(final DnstapOuterClass.Message message) {
+        final long timeNsec = getTimeNsec(message);
+        return (timeNsec >= 0) ? timeNsec / 1_000 : -1;
     }
 
 
@@ -85,7 +124,6 @@ public class Helper {
 
 
     public static long getExecTimeNsec(final DnstapOuterClass.Message message) {
-        final long NANO_IN_SECOND = 1_000_000_000;
         long execTime = -1;
         switch (DnsFrameType.get(message)) {
             case RESPONSE:
@@ -104,9 +142,16 @@ public class Helper {
     }
 
 
+    public static long getExecTimeUsec(final DnstapOuterClass.Message message) {
+        final long execTime = getExecTimeNsec(message);
+        return (execTime >= 0) ? execTime / 1_000 : -1;
+    }
+
+
     public static String prepareIpAddress(final ByteString addr) {
         String result = null;
-        if (addr != null) {
+        // Absent addresses are empty, not worth an exception
+        if (addr != null && !addr.isEmpty()) {
             try {
                 final byte[] bytes = addr.toByteArray();
                 final InetAddress address = InetAddress.getByAddress(bytes);
@@ -118,14 +163,33 @@ public class Helper {
     }
 
 
+    private static final BitSet NO_EXTENDED_TYPES = new BitSet();
+    // Answer types of the common single type responses, shared by all messages
+    private static final List<List<String>> SINGLE_TYPES = new ArrayList<>(256);
+    static {
+        for (int type = 0; type < 256; type++) {
+            SINGLE_TYPES.add(Collections.singletonList(Type.string(type)));
+        }
+    }
+
+    // Optional parse stages, header counts and the first question are always parsed
+    public static final int PARSE_FLAGS        = 1;
+    public static final int PARSE_ANSWERS      = 1 << 1;
+    public static final int PARSE_ANSWER_TYPES = 1 << 2;
+    public static final int PARSE_TTLS         = 1 << 3;
+
+
     public static class DNSMessage {
         public Message      _dns  = null;
         public DnsFrameType _type = DnsFrameType.UNKNOWN;
+        public Exception    _error = null;
         // Header
         public int          size = 0;
         public int          id   = -1;
         public String       opcode;
+        public int          opcodeValue = -1;
         public String       rcode;
+        public int          rcodeValue = -1;
         public String       flags;
         public int          numQuestions   = 0;
         public int          numAnswers     = 0;
@@ -137,22 +201,54 @@ public class Helper {
         // Data
         public String            questName;
         public String            questType;
+        public int               questTypeValue = -1;
         public String            questDClass;
+        public int               questDClassValue = -1;
         public String            firstQuestion;
-        public ArrayList<String> listOfAnswersData;
+        // New lists per parse, a message may keep them
+        public List<String>      listOfAnswersData = Collections.emptyList();
+        public List<String>      answerTypes;
+        public long              answerMinTtl = -1;
+        // Over answer and authority sections
+        public long              ttlMin = -1;
+        public long              ttlMax = -1;
+
+
+        private BitSet        _extendedTypes = NO_EXTENDED_TYPES;
+        private long          answerMaxTtl = -1;
+        // Scratch of the answer pass, kept when the object is reused
+        private int[]         answerTypeCodes = new int[8];
 
 
-        public DNSMessage(final DnstapOuterClass.Message message) {
+        /**
+         * Empty message to be filled by {@link #parse}, e.g. reused per thread.
+         */
+        public DNSMessage() {
+        }
+
+        /**
+         * Parses the DNS packet of the frame, replacing everything from a previous parse.
+         *
+         * @param extendedTypes answer types rendered by {@link RdataRenderer} in addition to the built-in ones
+         * @param stages        {@code PARSE_*} stages to run, fields of the others stay unset
+         */
+        public DNSMessage parse(final DnstapOuterClass.Message message, final BitSet extendedTypes, final int stages) {
+            clear();
+            _extendedTypes = extendedTypes;
             parseDnsWire(message);
             if (!isValid()) {
-                return;
+                return this;
             }
             size   = _dns.numBytes();
             final Header header = _dns.getHeader();
             id     = header.getID();
-            opcode = Opcode.string(header.getOpcode());
-            rcode  = Rcode.string(header.getRcode());
-            flags  = header.printFlags();
+            opcodeValue = header.getOpcode();
+            opcode = Opcode.string(opcodeValue);
+            rcodeValue = header.getRcode();
+            rcode  = Rcode.string(rcodeValue);
+            if ((stages & PARSE_FLAGS) != 0) {
+                flags = header.printFlags();
+            }
             numQuestions   = header.getCount(Section.QUESTION);
             numAnswers     = header.getCount(Section.ANSWER);
             numAuthorities = header.getCount(Section.AUTHORITY);
@@ -162,21 +258,74 @@ public class Helper {
             numUpdates     = header.getCount(Section.UPDATE);
             //
             fillFirstQuestion();
-            listOfAnswersData = getAnswersDataList();
+            if ((stages & (PARSE_ANSWERS | PARSE_ANSWER_TYPES | PARSE_TTLS)) != 0) {
+                fillAnswersDataList(stages);
+            }
+            if ((stages & PARSE_TTLS) != 0) {
+                ttlMin = answerMinTtl;
+                ttlMax = answerMaxTtl;
+                for (final Record rr : _dns.getSectionArray(Section.AUTHORITY)) {
+                    addTtl(rr.getTTL());
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Drops everything of the last parse, including the parsed packet.
+         */
+        public void clear() {
+            _dns   = null;
+            _type  = DnsFrameType.UNKNOWN;
+            _error = null;
+            size   = 0;
+            id     = -1;
+            opcode = null;
+            opcodeValue = -1;
+            rcode  = null;
+            rcodeValue = -1;
+            flags  = null;
+            numQuestions   = 0;
+            numAnswers     = 0;
+            numAuthorities = 0;
+            numAdditionals = 0;
+            numZones       = 0;
+            numPrereqs     = 0;
+            numUpdates     = 0;
+            questName        = null;
+            questType        = null;
+            questTypeValue   = -1;
+            questDClass      = null;
+            questDClassValue = -1;
+            firstQuestion    = null;
+            listOfAnswersData = Collections.emptyList();
+            answerTypes  = null;
+            answerMinTtl = -1;
+            answerMaxTtl = -1;
+            ttlMin = -1;
+            ttlMax = -1;
         }
 
         public boolean isValid() {
-            return (_type != null);
+            return (_dns != null);
         }
 
         public DnsFrameType getType() {
             return _type;
         }
 
+        public Exception getError() {
+            return _error;
+        }
+
         public String getFullMessage() {
             return _dns.toString();
         }
 
+        public Record[] getAnswerRecords() {
+            return _dns.getSectionArray(Section.ANSWER);
+        }
+
         private void parseDnsWire(final DnstapOuterClass.Message message) {
             final ByteString wire;
             _type = DnsFrameType.get(message);
@@ -191,12 +340,11 @@ public class Helper {
                     wire = null;
             }
             if (wire != null) {
-                final byte[] bytes = wire.toByteArray();
                 try {
-                    _dns = new Message(bytes);
+                    _dns = new Message(wire.toByteArray());
                 }
                 catch (Exception e) {
-                    Log.error("Cannot parse wire dns packet: {}", bytes);
+                    _error = e;
                 }
             }
         }
@@ -204,16 +352,44 @@ public class Helper {
         private void fillFirstQuestion() {
             final Record q = _dns.getQuestion();
             questName = q.getName().toString();
-            questType = Type.string(q.getType());
-            questDClass = DClass.string(q.getDClass());
+            questTypeValue = q.getType();
+            questType = Type.string(questTypeValue);
+            questDClassValue = q.getDClass();
+            questDClass = DClass.string(questDClassValue);
             firstQuestion = questName + " (" + questDClass + ", " + questType + ")";
         }
 
-        private ArrayList<String> getAnswersDataList() {
+        private void fillAnswersDataList(final int stages) {
             Record[] list = _dns.getSectionArray(Section.ANSWER);
-            ArrayList<String> result = new ArrayList<>(list.length);
+            final boolean render = (stages & PARSE_ANSWERS) != 0;
+            final boolean typed  = (stages & PARSE_ANSWER_TYPES) != 0;
+            final ArrayList<String> result = (render && list.length > 0) ? new ArrayList<>(list.length) : null;
+            // Distinct types in order of appearance and minimal TTL, in the same pass
+            if (answerTypeCodes.length < list.length) {
+                answerTypeCodes = new int[list.length];
+            }
+            final int[] types = answerTypeCodes;
+            int numTypes = 0;
             for (int i=0; i<list.length; i++) {
-                switch (list[i].getType()) {
+                final long ttl = list[i].getTTL();
+                if (answerMinTtl < 0 || ttl < answerMinTtl) {
+                    answerMinTtl = ttl;
+                }
+                answerMaxTtl = Math.max(answerMaxTtl, ttl);
+                final int type = list[i].getType();
+                if (typed) {
+                    int t = 0;
+                    while (t < numTypes && types[t] != type) {
+                        t++;
+                    }
+                    if (t == numTypes) {
+                        types[numTypes++] = type;
+                    }
+                }
+                if (!render) {
+                    continue;
+                }
+                switch (type) {
                     case Type.A:
                         addAnswerToList(result, ((org.xbill.DNS.ARecord)list[i]).getAddress());
                         break;
@@ -237,9 +413,31 @@ public class Helper {
                         break;
                     case Type.SOA:
                         addAnswerToList(result, (org.xbill.DNS.SOARecord)list[i]);
+                        break;
+                    default:
+                        if (_extendedTypes.get(list[i].getType())) {
+                            addAnswerToList(result, RdataRenderer.render(list[i]));
+                        }
                 }
             }
-            return result;
+            if (result != null && !result.isEmpty()) {
+                listOfAnswersData = result;
+            }
+            answerTypes = typeNames(types, numTypes);
+        }
+
+        private static List<String> typeNames(final int[] types, final int numTypes) {
+            if (numTypes == 0) {
+                return null;
+            }
+            if (numTypes == 1 && types[0] < SINGLE_TYPES.size()) {
+                return SINGLE_TYPES.get(types[0]);
+            }
+            final List<String> names = new ArrayList<>(numTypes);
+            for (int t = 0; t < numTypes; t++) {
+                names.add(Type.string(types[t]));
+            }
+            return names;
         }
 
         private void addAnswerToList(final ArrayList<String> list,
@@ -249,6 +447,20 @@ public class Helper {
             }
         }
 
+        private void addTtl(final long ttl) {
+            if (ttlMin < 0 || ttl < ttlMin) {
+                ttlMin = ttl;
+            }
+            ttlMax = Math.max(ttlMax, ttl);
+        }
+
+        private void addAnswerToList(final ArrayList<String> list,
+                                     final String rdata) {
+            if (rdata != null) {
+                list.add(rdata);
+            }
+        }
+
         private void addAnswerToList(final ArrayList<String> list,
                                      final Name name) {
             if (name != null) {
@@ -0,0 +1,135 @@
+package org.graylog.plugins.dnstap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.io.BaseEncoding;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Collects decoding failures instead of logging every bad frame.
+ * Keeps a counter per failure reason, a bounded ring of the most recent
+ * offending frames (exposed through REST) and writes at most one
+ * summary log line per interval.
+ */
+@Singleton
+public class ParseErrorReporter {
+    private static final Logger Log = LoggerFactory.getLogger(ParseErrorReporter.class);
+
+    private static final int  RECENT_FRAMES       = 64;
+    private static final int  RECENT_FRAME_BYTES  = 512;
+    private static final long LOG_INTERVAL_NANOS  = TimeUnit.SECONDS.toNanos(10);
+
+    public enum Reason {
+        INVALID_PROTOBUF,
+        INVALID_DNS_WIRE
+    }
+
+    private final Map<Reason, Counter> counters = new EnumMap<>(Reason.class);
+    private final Failure[] recent = new Failure[RECENT_FRAMES];
+    private long recentNext = 0;
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong nextLogNanos = new AtomicLong(System.nanoTime());
+
+    @Inject
+    public ParseErrorReporter(final MetricRegistry metricRegistry) {
+        for (Reason reason : Reason.values()) {
+            counters.put(reason, metricRegistry.counter(name(DnstapCodec.class, "parse_errors", reason.name())));
+        }
+    }
+
+    public void report(final Reason reason,
+                       final String source,
+                       final byte[] frame,
+                       final Exception error) {
+        counters.get(reason).inc();
+        final byte[] prefix = Arrays.copyOf(frame, Math.min(frame.length, RECENT_FRAME_BYTES));
+        final Failure failure = new Failure(DateTime.now(), reason, source, String.valueOf(error), frame.length, prefix);
+        synchronized (recent) {
+            recent[(int) (recentNext++ % RECENT_FRAMES)] = failure;
+        }
+        //
+        final long now  = System.nanoTime();
+        final long next = nextLogNanos.get();
+        if (now - next >= 0 && nextLogNanos.compareAndSet(next, now + LOG_INTERVAL_NANOS)) {
+            final long skipped = suppressed.getAndSet(0);
+            Log.warn("Cannot decode dnstap frame from {}: {} ({}), {} more failures since last report",
+                     source, reason, error, skipped);
+        }
+        else {
+            suppressed.incrementAndGet();
+        }
+    }
+
+    public Map<String, Long> getCounts() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<Reason, Counter> entry : counters.entrySet()) {
+            result.put(entry.getKey().name(), entry.getValue().getCount());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the recent failures, newest first.
+     */
+    public List<Failure> getRecent() {
+        final List<Failure> result = new ArrayList<>(RECENT_FRAMES);
+        synchronized (recent) {
+            final long oldest = Math.max(0, recentNext - RECENT_FRAMES);
+            for (long i = recentNext - 1; i >= oldest; i--) {
+                result.add(recent[(int) (i % RECENT_FRAMES)]);
+            }
+        }
+        return result;
+    }
+
+
+    public static class Failure {
+        @JsonProperty("timestamp")
+        public final DateTime timestamp;
+        @JsonProperty("reason")
+        public final Reason reason;
+        @JsonProperty("source")
+        public final String source;
+        @JsonProperty("error")
+        public final String error;
+        @JsonProperty("size")
+        public final int size;
+
+        private final byte[] prefix;
+
+        private Failure(final DateTime timestamp,
+                        final Reason reason,
+                        final String source,
+                        final String error,
+                        final int size,
+                        final byte[] prefix) {
+            this.timestamp = timestamp;
+            this.reason    = reason;
+            this.source    = source;
+            this.error     = error;
+            this.size      = size;
+            this.prefix    = prefix;
+        }
+
+        @JsonProperty("hex")
+        public String getHex() {
+            return BaseEncoding.base16().lowerCase().encode(prefix);
+        }
+    }
+}
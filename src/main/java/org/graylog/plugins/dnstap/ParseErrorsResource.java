@@ -0,0 +1,51 @@
+package org.graylog.plugins.dnstap;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.graylog2.plugin.rest.PluginRestResource;
+import org.graylog2.shared.rest.resources.RestResource;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.List;
+import java.util.Map;
+
+@RequiresAuthentication
+@Api(value = "Dnstap/ParseErrors", description = "Dnstap decoding failures")
+@Path("/parse_errors")
+@Produces(MediaType.APPLICATION_JSON)
+public class ParseErrorsResource extends RestResource implements PluginRestResource {
+    private final ParseErrorReporter reporter;
+
+    @Inject
+    public ParseErrorsResource(final ParseErrorReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    @GET
+    @RequiresPermissions(DnstapPermissions.PARSE_ERRORS_READ)
+    @ApiOperation(value = "Failure counters and the most recent offending frames")
+    public ParseErrorsSummary get() {
+        return new ParseErrorsSummary(reporter.getCounts(), reporter.getRecent());
+    }
+
+
+    public static class ParseErrorsSummary {
+        @JsonProperty("counts")
+        public final Map<String, Long> counts;
+        @JsonProperty("recent")
+        public final List<ParseErrorReporter.Failure> recent;
+
+        public ParseErrorsSummary(final Map<String, Long> counts,
+                                  final List<ParseErrorReporter.Failure> recent) {
+            this.counts = counts;
+            this.recent = recent;
+        }
+    }
+}
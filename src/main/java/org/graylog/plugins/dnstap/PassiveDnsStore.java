@@ -0,0 +1,223 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+    Passive DNS store, remembers (rrname, rrtype, rdata) tuples with
+    first-seen/last-seen time and hit count.
+
+    Tuples are identified by 64-bit hash and kept off-heap in a fixed number
+    of segments, every segment is an open addressing hash table in a direct
+    buffer guarded by its own lock. The table never grows: entries not seen
+    during TTL are reused, and when a probe sequence is full the least
+    recently seen entry is evicted.
+
+    Slot layout (32 bytes):
+        +---------+-----------+----------+----------+---------+---------+
+        |  Hash   | FirstSeen | LastSeen | Reported |  Count  | Padding |
+        +---------+-----------+----------+----------+---------+---------+
+        | 8 Bytes |  4 Bytes  | 4 Bytes  | 4 Bytes  | 4 Bytes | 8 Bytes |
+        +---------+-----------+----------+----------+---------+---------+
+
+        Times are seconds relative to the store creation.
+*/
+public class PassiveDnsStore {
+    private static final Logger Log = LoggerFactory.getLogger(PassiveDnsStore.class);
+
+    private static final int SLOT_SIZE       = 32;
+    private static final int OFF_HASH        = 0;
+    private static final int OFF_FIRST_SEEN  = 8;
+    private static final int OFF_LAST_SEEN   = 12;
+    private static final int OFF_REPORTED    = 16;
+    private static final int OFF_COUNT       = 20;
+
+    private static final int SEGMENTS        = 64;
+    private static final int MAX_PROBES      = 16;
+    private static final long EMPTY          = 0L;
+
+    private final long baseSec;
+    private final int ttlSec;
+    private final int updateIntervalSec;
+    private final int slotsPerSegment;
+    private final ByteBuffer[] segments = new ByteBuffer[SEGMENTS];
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * What has to be emitted for an observed tuple.
+     */
+    public static class Observation {
+        public final boolean firstSeen;
+        public final long    firstSeenSec;
+        public final long    lastSeenSec;
+        public final long    count;
+
+        private Observation(final boolean firstSeen,
+                            final long firstSeenSec,
+                            final long lastSeenSec,
+                            final long count) {
+            this.firstSeen    = firstSeen;
+            this.firstSeenSec = firstSeenSec;
+            this.lastSeenSec  = lastSeenSec;
+            this.count        = count;
+        }
+    }
+
+    public PassiveDnsStore(final long memoryBytes,
+                           final int ttlSec,
+                           final int updateIntervalSec) {
+        this.baseSec = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        this.ttlSec = ttlSec;
+        this.updateIntervalSec = updateIntervalSec;
+        this.slotsPerSegment = (int) Math.max(MAX_PROBES, Math.min(memoryBytes / SEGMENTS / SLOT_SIZE,
+                                                                   Integer.MAX_VALUE / SLOT_SIZE));
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = ByteBuffer.allocateDirect(slotsPerSegment * SLOT_SIZE);
+        }
+        Log.debug("Allocated passive DNS store with {} slots", (long) slotsPerSegment * SEGMENTS);
+    }
+
+    /**
+     * Registers a tuple seen at {@code nowSec} (epoch seconds).
+     * Returns null when nothing has to be emitted: the tuple is known and
+     * an update for it was emitted less than update interval ago.
+     */
+    @Nullable
+    public Observation observe(long hash, final long nowSec) {
+        if (hash == EMPTY) {
+            hash = 1;
+        }
+        final int now = (int) (nowSec - baseSec);
+        final ByteBuffer segment = segments[(int) ((hash >>> 58) & (SEGMENTS - 1))];
+        final int start = (int) ((hash & Long.MAX_VALUE) % slotsPerSegment);
+        synchronized (segment) {
+            int victim = -1;
+            int victimLastSeen = Integer.MAX_VALUE;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                final int slot = ((start + probe) % slotsPerSegment) * SLOT_SIZE;
+                final long slotHash = segment.getLong(slot + OFF_HASH);
+                if (slotHash == hash) {
+                    final int lastSeen = segment.getInt(slot + OFF_LAST_SEEN);
+                    if (now - lastSeen > ttlSec) {
+                        // Expired, start tracking again
+                        return insert(segment, slot, hash, now);
+                    }
+                    return touch(segment, slot, now);
+                }
+                if (slotHash == EMPTY) {
+                    return insert(segment, slot, hash, now);
+                }
+                final int lastSeen = segment.getInt(slot + OFF_LAST_SEEN);
+                if (victim < 0 || lastSeen < victimLastSeen) {
+                    victim = slot;
+                    victimLastSeen = lastSeen;
+                }
+            }
+            if (now - victimLastSeen <= ttlSec) {
+                evictions.incrementAndGet();
+            }
+            return insert(segment, victim, hash, now);
+        }
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private Observation insert(final ByteBuffer segment,
+                               final int slot,
+                               final long hash,
+                               final int now) {
+        segment.putLong(slot + OFF_HASH,       hash);
+        segment.putInt(slot + OFF_FIRST_SEEN,  now);
+        segment.putInt(slot + OFF_LAST_SEEN,   now);
+        segment.putInt(slot + OFF_REPORTED,    now);
+        segment.putInt(slot + OFF_COUNT,       1);
+        return new Observation(true, baseSec + now, baseSec + now, 1);
+    }
+
+    @Nullable
+    private Observation touch(final ByteBuffer segment,
+                              final int slot,
+                              final int now) {
+        final int count = segment.getInt(slot + OFF_COUNT);
+        final int lastSeen = Math.max(now, segment.getInt(slot + OFF_LAST_SEEN));
+        segment.putInt(slot + OFF_LAST_SEEN, lastSeen);
+        segment.putInt(slot + OFF_COUNT, (count == Integer.MAX_VALUE) ? count : count + 1);
+        if (updateIntervalSec <= 0) {
+            return null;
+        }
+        final int reported = segment.getInt(slot + OFF_REPORTED);
+        if (now - reported < updateIntervalSec) {
+            return null;
+        }
+        segment.putInt(slot + OFF_REPORTED, now);
+        final int firstSeen = segment.getInt(slot + OFF_FIRST_SEEN);
+        return new Observation(false, baseSec + firstSeen, baseSec + lastSeen, count + 1L);
+    }
+
+
+    /**
+     * Node wide stores shared by codec instances with the same settings.
+     * Graylog creates a codec per raw message, so the stores cannot be owned
+     * by the codec. Unused stores are dropped and their memory released.
+     */
+    @Singleton
+    public static class Registry {
+        private final LoadingCache<Settings, PassiveDnsStore> stores = CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(new CacheLoader<Settings, PassiveDnsStore>() {
+                    @Override
+                    public PassiveDnsStore load(final Settings settings) {
+                        return new PassiveDnsStore(settings.memoryBytes, settings.ttlSec, settings.updateIntervalSec);
+                    }
+                });
+
+        public PassiveDnsStore get(final long memoryBytes,
+                                   final int ttlSec,
+                                   final int updateIntervalSec) {
+            return stores.getUnchecked(new Settings(memoryBytes, ttlSec, updateIntervalSec));
+        }
+    }
+
+    private static class Settings {
+        private final long memoryBytes;
+        private final int  ttlSec;
+        private final int  updateIntervalSec;
+
+        private Settings(final long memoryBytes, final int ttlSec, final int updateIntervalSec) {
+            this.memoryBytes       = memoryBytes;
+            this.ttlSec            = ttlSec;
+            this.updateIntervalSec = updateIntervalSec;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            final Settings that = (Settings) o;
+            return memoryBytes == that.memoryBytes
+                && ttlSec == that.ttlSec
+                && updateIntervalSec == that.updateIntervalSec;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(memoryBytes, ttlSec, updateIntervalSec);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.Resources;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+    Lexical features of the first question name used to spot DNS tunneling
+    and generated domains: character entropy, longest label, ratio of digits
+    and the average bigram cost under a character model of ordinary words.
+
+    Works directly on the DNS wire bytes in one pass over the name. The
+    scorer is reused per thread, so scoring allocates nothing.
+
+    Also produces 64-bit hashes of the whole name and of its registered
+    domain, which is approximated by the last two labels, or the last three
+    when they look like a country code second level domain (e.g. co.uk).
+*/
+public class QnameScorer {
+    private static final int DNS_HEADER_LENGTH = 12;
+    private static final int SYMBOLS  = 39;
+    private static final int BOUNDARY = 0;
+    private static final byte[] BIGRAM_COSTS = loadModel("bigrams.txt");
+    private static final ThreadLocal<QnameScorer> SCORERS = ThreadLocal.withInitial(QnameScorer::new);
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME  = 0x100000001b3L;
+
+    private final int[] histogram = new int[256];
+    private final int[] seen = new int[256];
+    private final int[] labelStarts = new int[3];
+    private final int[] labelLengths = new int[3];
+
+    // Results of the last score() call
+    public double entropy;
+    public int    longestLabel;
+    public double digitRatio;
+    public double bigramScore;
+    public long   nameHash;
+    public long   domainHash;
+
+    private QnameScorer() {
+    }
+
+    public static QnameScorer get() {
+        return SCORERS.get();
+    }
+
+    /**
+     * Scores the first question name of a DNS packet,
+     * returns false if the name cannot be read.
+     */
+    public boolean score(final ByteString wire) {
+        final int size = wire.size();
+        if (size <= DNS_HEADER_LENGTH || (wire.byteAt(4) == 0 && wire.byteAt(5) == 0)) {
+            return false;
+        }
+        int distinct = 0;
+        int chars    = 0;
+        int digits   = 0;
+        int labels   = 0;
+        long cost    = 0;
+        int bigrams  = 0;
+        long hash    = FNV_OFFSET;
+        longestLabel = 0;
+        int pos = DNS_HEADER_LENGTH;
+        while (true) {
+            if (pos >= size) {
+                resetHistogram(distinct);
+                return false;
+            }
+            final int length = wire.byteAt(pos) & 0xff;
+            if (length == 0) {
+                break;
+            }
+            // Compression pointers are not expected in the first question
+            if ((length & 0xc0) != 0 || pos + 1 + length > size) {
+                resetHistogram(distinct);
+                return false;
+            }
+            labelStarts[labels % 3]  = pos + 1;
+            labelLengths[labels % 3] = length;
+            labels++;
+            longestLabel = Math.max(longestLabel, length);
+            hash = (hash ^ length) * FNV_PRIME;
+            int previous = BOUNDARY;
+            for (int i = pos + 1; i <= pos + length; i++) {
+                final int c = lower(wire.byteAt(i) & 0xff);
+                if (histogram[c]++ == 0) {
+                    seen[distinct++] = c;
+                }
+                if (c >= '0' && c <= '9') {
+                    digits++;
+                }
+                final int symbol = symbol(c);
+                cost += BIGRAM_COSTS[previous * SYMBOLS + symbol];
+                bigrams++;
+                previous = symbol;
+                hash = (hash ^ c) * FNV_PRIME;
+            }
+            cost += BIGRAM_COSTS[previous * SYMBOLS + BOUNDARY];
+            bigrams++;
+            chars += length;
+            pos += 1 + length;
+        }
+        // Entropy of the characters, the histogram is cleared on the way
+        double sum = 0;
+        for (int i = 0; i < distinct; i++) {
+            final int c = seen[i];
+            final double p = histogram[c] / (double) chars;
+            sum -= p * Math.log(p);
+            histogram[c] = 0;
+        }
+        entropy     = (chars > 0) ? sum / Math.log(2) : 0;
+        digitRatio  = (chars > 0) ? digits / (double) chars : 0;
+        bigramScore = (bigrams > 0) ? cost / (10.0 * bigrams) : 0;
+        nameHash    = mix(hash);
+        domainHash  = mix(registeredDomainHash(wire, labels));
+        return true;
+    }
+
+    /**
+     * Hashes only the registered domain of the first question name into
+     * {@link #domainHash}, without scoring it. Returns false if the name
+     * cannot be read.
+     */
+    public boolean hashDomain(final ByteString wire) {
+        final int size = wire.size();
+        if (size <= DNS_HEADER_LENGTH || (wire.byteAt(4) == 0 && wire.byteAt(5) == 0)) {
+            return false;
+        }
+        int labels = 0;
+        int pos = DNS_HEADER_LENGTH;
+        while (true) {
+            if (pos >= size) {
+                return false;
+            }
+            final int length = wire.byteAt(pos) & 0xff;
+            if (length == 0) {
+                break;
+            }
+            if ((length & 0xc0) != 0 || pos + 1 + length > size) {
+                return false;
+            }
+            labelStarts[labels % 3]  = pos + 1;
+            labelLengths[labels % 3] = length;
+            labels++;
+            pos += 1 + length;
+        }
+        domainHash = mix(registeredDomainHash(wire, labels));
+        return true;
+    }
+
+    // No public suffix list: a short second level label under a two letter
+    // TLD is taken for a suffix like co.uk, so "abc.xyz.io" counts as its
+    // own registered domain instead of under "xyz.io", while "example.com.au"
+    // is right. Good enough to group names, not to attribute them.
+    private long registeredDomainHash(final ByteString wire, final int labels) {
+        int count = Math.min(labels, 2);
+        if (labels >= 3 && labelLengths[(labels - 1) % 3] == 2 && labelLengths[(labels - 2) % 3] <= 3) {
+            count = 3;
+        }
+        long hash = FNV_OFFSET;
+        for (int l = labels - count; l < labels; l++) {
+            final int start  = labelStarts[l % 3];
+            final int length = labelLengths[l % 3];
+            hash = (hash ^ length) * FNV_PRIME;
+            for (int i = start; i < start + length; i++) {
+                hash = (hash ^ lower(wire.byteAt(i) & 0xff)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Registered domain of a presentation format name by the same rule as
+     * {@link #domainHash}, e.g. "example.co.uk." for "www.example.co.uk.".
+     */
+    public static String registeredDomain(final String name) {
+        final List<String> labels = Splitter.on('.').omitEmptyStrings().splitToList(name);
+        final int size = labels.size();
+        int count = Math.min(size, 2);
+        if (size >= 3 && labels.get(size - 1).length() == 2 && labels.get(size - 2).length() <= 3) {
+            count = 3;
+        }
+        return String.join(".", labels.subList(size - count, size)) + ".";
+    }
+
+    private void resetHistogram(final int distinct) {
+        for (int i = 0; i < distinct; i++) {
+            histogram[seen[i]] = 0;
+        }
+    }
+
+    private static int lower(final int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    private static int symbol(final int c) {
+        if (c >= 'a' && c <= 'z') {
+            return 1 + c - 'a';
+        }
+        if (c >= '0' && c <= '9') {
+            return 27 + c - '0';
+        }
+        return (c == '-') ? 37 : 38;
+    }
+
+    private static long mix(long h) {
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private static byte[] loadModel(final String resource) {
+        final byte[] costs = new byte[SYMBOLS * SYMBOLS];
+        try {
+            final List<String> lines = Resources.readLines(Resources.getResource(QnameScorer.class, resource),
+                                                           StandardCharsets.US_ASCII);
+            int row = 0;
+            for (String line : lines) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int column = 0;
+                for (String value : Splitter.on(' ').omitEmptyStrings().split(line)) {
+                    costs[row * SYMBOLS + column++] = Byte.parseByte(value);
+                }
+                row++;
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Cannot load qname bigram model " + resource, e);
+        }
+        return costs;
+    }
+}
@@ -0,0 +1,185 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Singleton;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+    Subnet and pseudonym of the query (client) address, computed from the
+    raw address bytes of the dnstap frame.
+
+    IPv4 addresses are truncated to /24, IPv6 to a configurable prefix.
+    In pseudonymize mode the address and the subnet are replaced by a
+    keyed SipHash-2-4 of their bytes, stable for one key, so clients and
+    subnets can still be grouped without being identified. Without a key
+    the pseudonyms could be recomputed by anyone, the masker truncates
+    instead.
+
+    Formatted strings are cached by the raw address.
+*/
+public class QueryAddressMasker {
+    private static final Logger Log = LoggerFactory.getLogger(QueryAddressMasker.class);
+    private static final int IPV4_PREFIX = 24;
+    private static final int CACHE_SIZE  = 100000;
+
+    public enum Mode {
+        // Address and subnet
+        SUBNET,
+        // Subnet only, the address is dropped
+        TRUNCATE,
+        // Keyed hashes of address and subnet
+        PSEUDONYMIZE
+    }
+
+    public static class Masked {
+        public final String address;
+        public final String subnet;
+
+        private Masked(final String address, final String subnet) {
+            this.address = address;
+            this.subnet  = subnet;
+        }
+    }
+
+    private static final Masked INVALID = new Masked(null, null);
+
+    private final Mode mode;
+    private final int ipv6Prefix;
+    private final HashFunction pseudonymHash;
+    private final Cache<ByteString, Masked> cache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    private QueryAddressMasker(final Mode mode, final int ipv6Prefix, final String key) {
+        this.mode       = mode;
+        this.ipv6Prefix = ipv6Prefix;
+        // 128-bit SipHash key derived from the configured secret
+        final byte[] keyBytes = Hashing.sha256().hashString(key, StandardCharsets.UTF_8).asBytes();
+        this.pseudonymHash = Hashing.sipHash24(Longs.fromByteArray(Arrays.copyOfRange(keyBytes, 0, 8)),
+                                               Longs.fromByteArray(Arrays.copyOfRange(keyBytes, 8, 16)));
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the masked address, fields are null if the address is not IPv4 or IPv6.
+     */
+    public Masked mask(final ByteString address) {
+        final Masked cached = cache.getIfPresent(address);
+        if (cached != null) {
+            return cached;
+        }
+        final Masked masked = compute(address.toByteArray());
+        cache.put(address, masked);
+        return masked;
+    }
+
+    private Masked compute(final byte[] bytes) {
+        final int prefix;
+        switch (bytes.length) {
+            case 4:
+                prefix = IPV4_PREFIX;
+                break;
+            case 16:
+                prefix = ipv6Prefix;
+                break;
+            default:
+                return INVALID;
+        }
+        final byte[] network = Arrays.copyOf(bytes, bytes.length);
+        for (int bit = prefix; bit < network.length * 8; bit++) {
+            network[bit / 8] &= ~(0x80 >>> (bit % 8));
+        }
+        switch (mode) {
+            case PSEUDONYMIZE:
+                return new Masked(pseudonym(bytes), pseudonym(network) + "/" + prefix);
+            case TRUNCATE:
+                return new Masked(null, format(network) + "/" + prefix);
+            default:
+                return new Masked(format(bytes), format(network) + "/" + prefix);
+        }
+    }
+
+    private String pseudonym(final byte[] bytes) {
+        return pseudonymHash.hashBytes(bytes).toString();
+    }
+
+    // Same notation as Helper.prepareIpAddress, so masked and unmasked addresses match
+    private static String format(final byte[] bytes) {
+        try {
+            return InetAddress.getByAddress(bytes).getHostAddress();
+        }
+        catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Node wide maskers shared by codec instances with the same settings.
+     */
+    @Singleton
+    public static class Registry {
+        private final LoadingCache<Settings, QueryAddressMasker> maskers = CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(new CacheLoader<Settings, QueryAddressMasker>() {
+                    @Override
+                    public QueryAddressMasker load(final Settings settings) {
+                        if (settings.mode == Mode.PSEUDONYMIZE && settings.key.isEmpty()) {
+                            Log.warn("No pseudonym key configured, truncating query addresses instead of pseudonymizing them");
+                            return new QueryAddressMasker(Mode.TRUNCATE, settings.ipv6Prefix, settings.key);
+                        }
+                        return new QueryAddressMasker(settings.mode, settings.ipv6Prefix, settings.key);
+                    }
+                });
+
+        public QueryAddressMasker get(final Mode mode, final int ipv6Prefix, final String key) {
+            return maskers.getUnchecked(new Settings(mode, ipv6Prefix, key));
+        }
+    }
+
+    private static class Settings {
+        private final Mode mode;
+        private final int ipv6Prefix;
+        private final String key;
+
+        private Settings(final Mode mode, final int ipv6Prefix, final String key) {
+            this.mode       = mode;
+            this.ipv6Prefix = ipv6Prefix;
+            this.key        = key;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            final Settings that = (Settings) o;
+            return mode == that.mode
+                && ipv6Prefix == that.ipv6Prefix
+                && key.equals(that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mode, ipv6Prefix, key);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package org.graylog.plugins.dnstap;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+    Presentation of answer types not covered by the built-in answer list:
+    TXT, NAPTR, DS, DNSKEY, SVCB, HTTPS and CAA.
+
+    Rendering reads the canonical RDATA wire bytes, so it also works for
+    types unknown to dnsjava (SVCB, HTTPS, CAA come as UNKRecord). DNSKEY
+    is rendered with its key tag instead of the key material.
+*/
+public final class RdataRenderer {
+    // Types missing from dnsjava 2.1.7
+    private static final int SVCB  = 64;
+    private static final int HTTPS = 65;
+    private static final int CAA   = 257;
+
+    public static final Map<String, Integer> TYPES = ImmutableMap.<String, Integer>builder()
+        .put("TXT"   , Type.TXT)
+        .put("NAPTR" , Type.NAPTR)
+        .put("DS"    , Type.DS)
+        .put("DNSKEY", Type.DNSKEY)
+        .put("SVCB"  , SVCB)
+        .put("HTTPS" , HTTPS)
+        .put("CAA"   , CAA)
+        .build();
+
+    private static final String[] SVC_PARAM_KEYS = {
+        "mandatory", "alpn", "no-default-alpn", "port", "ipv4hint", "ech", "ipv6hint"
+    };
+
+    private RdataRenderer() {
+    }
+
+    /**
+     * Parses a comma separated list of type names, unknown names are ignored.
+     */
+    public static BitSet parseTypes(final String types) {
+        final BitSet result = new BitSet();
+        if (types == null) {
+            return result;
+        }
+        for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(types)) {
+            final Integer type = TYPES.get(name.toUpperCase(Locale.ENGLISH));
+            if (type != null) {
+                result.set(type);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Renders the RDATA of a record of one of the supported types, null otherwise.
+     */
+    public static String render(final Record rr) {
+        final byte[] rdata = rr.rdataToWireCanonical();
+        final StringBuilder sb = new StringBuilder(rdata.length * 2);
+        try {
+            switch (rr.getType()) {
+                case Type.TXT:
+                    renderTxt(rdata, sb);
+                    break;
+                case Type.NAPTR:
+                    renderNaptr(rdata, sb);
+                    break;
+                case Type.DS:
+                    renderDs(rdata, sb);
+                    break;
+                case Type.DNSKEY:
+                    renderDnskey(rdata, sb);
+                    break;
+                case SVCB:
+                case HTTPS:
+                    renderSvcb(rdata, sb);
+                    break;
+                case CAA:
+                    renderCaa(rdata, sb);
+                    break;
+                default:
+                    return null;
+            }
+        }
+        catch (IndexOutOfBoundsException e) {
+            // Truncated RDATA
+            return null;
+        }
+        return sb.toString();
+    }
+
+    // "v=spf1 -all" "second string"
+    private static void renderTxt(final byte[] rdata, final StringBuilder sb) {
+        int pos = 0;
+        while (pos < rdata.length) {
+            if (pos > 0) {
+                sb.append(' ');
+            }
+            pos = appendCharacterString(rdata, pos, sb);
+        }
+    }
+
+    // 100 10 "S" "SIP+D2U" "" _sip._udp.example.com.
+    private static void renderNaptr(final byte[] rdata, final StringBuilder sb) {
+        sb.append(uint16(rdata, 0)).append(' ').append(uint16(rdata, 2));
+        int pos = 4;
+        for (int i = 0; i < 3; i++) {
+            sb.append(' ');
+            pos = appendCharacterString(rdata, pos, sb);
+        }
+        sb.append(' ');
+        appendName(rdata, pos, sb);
+    }
+
+    // 20326 8 2 E06D44B8...
+    private static void renderDs(final byte[] rdata, final StringBuilder sb) {
+        sb.append(uint16(rdata, 0))
+          .append(' ').append(rdata[2] & 0xff)
+          .append(' ').append(rdata[3] & 0xff)
+          .append(' ').append(BaseEncoding.base16().encode(rdata, 4, rdata.length - 4));
+    }
+
+    // 257 3 8 key_tag=20326
+    private static void renderDnskey(final byte[] rdata, final StringBuilder sb) {
+        sb.append(uint16(rdata, 0))
+          .append(' ').append(rdata[2] & 0xff)
+          .append(' ').append(rdata[3] & 0xff)
+          .append(" key_tag=").append(keyTag(rdata));
+    }
+
+    // 1 . alpn=h2,h3 ipv4hint=192.0.2.1
+    private static void renderSvcb(final byte[] rdata, final StringBuilder sb) {
+        sb.append(uint16(rdata, 0)).append(' ');
+        int pos = appendName(rdata, 2, sb);
+        while (pos + 4 <= rdata.length) {
+            final int key    = uint16(rdata, pos);
+            final int length = uint16(rdata, pos + 2);
+            final int start  = pos + 4;
+            final int end    = start + length;
+            if (end > rdata.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            sb.append(' ').append((key < SVC_PARAM_KEYS.length) ? SVC_PARAM_KEYS[key] : "key" + key);
+            if (length > 0) {
+                sb.append('=');
+                appendSvcParamValue(key, rdata, start, end, sb);
+            }
+            pos = end;
+        }
+    }
+
+    // 0 issue "letsencrypt.org"
+    private static void renderCaa(final byte[] rdata, final StringBuilder sb) {
+        final int tagLength = rdata[1] & 0xff;
+        sb.append(rdata[0] & 0xff).append(' ');
+        for (int i = 2; i < 2 + tagLength; i++) {
+            sb.append((char) rdata[i]);
+        }
+        sb.append(" \"");
+        appendEscaped(rdata, 2 + tagLength, rdata.length, sb);
+        sb.append('"');
+    }
+
+    private static void appendSvcParamValue(final int key,
+                                            final byte[] rdata,
+                                            final int start,
+                                            final int end,
+                                            final StringBuilder sb) {
+        switch (key) {
+            case 0:
+                for (int i = start; i + 1 < end; i += 2) {
+                    final int mandatory = uint16(rdata, i);
+                    sb.append((i > start) ? "," : "")
+                      .append((mandatory < SVC_PARAM_KEYS.length) ? SVC_PARAM_KEYS[mandatory] : "key" + mandatory);
+                }
+                break;
+            case 1:
+                for (int i = start; i < end; ) {
+                    final int length = rdata[i] & 0xff;
+                    if (i > start) {
+                        sb.append(',');
+                    }
+                    appendEscaped(rdata, i + 1, i + 1 + length, sb);
+                    i += 1 + length;
+                }
+                break;
+            case 3:
+                sb.append(uint16(rdata, start));
+                break;
+            case 4:
+                for (int i = start; i + 3 < end; i += 4) {
+                    sb.append((i > start) ? "," : "")
+                      .append(rdata[i] & 0xff).append('.').append(rdata[i + 1] & 0xff).append('.')
+                      .append(rdata[i + 2] & 0xff).append('.').append(rdata[i + 3] & 0xff);
+                }
+                break;
+            case 5:
+                sb.append(BaseEncoding.base64().encode(rdata, start, end - start));
+                break;
+            case 6:
+                for (int i = start; i + 15 < end; i += 16) {
+                    if (i > start) {
+                        sb.append(',');
+                    }
+                    for (int j = 0; j < 16; j += 2) {
+                        sb.append((j > 0) ? ":" : "").append(Integer.toHexString(uint16(rdata, i + j)));
+                    }
+                }
+                break;
+            default:
+                sb.append(BaseEncoding.base16().encode(rdata, start, end - start));
+        }
+    }
+
+    private static int appendCharacterString(final byte[] rdata, final int pos, final StringBuilder sb) {
+        final int length = rdata[pos] & 0xff;
+        final int end    = pos + 1 + length;
+        if (end > rdata.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        sb.append('"');
+        appendEscaped(rdata, pos + 1, end, sb);
+        sb.append('"');
+        return end;
+    }
+
+    private static int appendName(final byte[] rdata, final int pos, final StringBuilder sb) {
+        int i = pos;
+        int length = rdata[i] & 0xff;
+        if (length == 0) {
+            sb.append('.');
+            return i + 1;
+        }
+        while (length != 0) {
+            // Canonical RDATA is never compressed
+            appendEscaped(rdata, i + 1, i + 1 + length, sb);
+            sb.append('.');
+            i += 1 + length;
+            length = rdata[i] & 0xff;
+        }
+        return i + 1;
+    }
+
+    private static void appendEscaped(final byte[] rdata, final int start, final int end, final StringBuilder sb) {
+        if (end > rdata.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = start; i < end; i++) {
+            final int c = rdata[i] & 0xff;
+            if (c < 0x20 || c > 0x7e) {
+                sb.append('\\').append((char) ('0' + c / 100)).append((char) ('0' + c / 10 % 10)).append((char) ('0' + c % 10));
+            }
+            else {
+                if (c == '"' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append((char) c);
+            }
+        }
+    }
+
+    // RFC 4034 Appendix B
+    private static int keyTag(final byte[] rdata) {
+        long ac = 0;
+        for (int i = 0; i < rdata.length; i++) {
+            ac += ((i & 1) == 0) ? (rdata[i] & 0xff) << 8 : (rdata[i] & 0xff);
+        }
+        ac += (ac >> 16) & 0xffff;
+        return (int) (ac & 0xffff);
+    }
+
+    private static int uint16(final byte[] rdata, final int pos) {
+        return ((rdata[pos] & 0xff) << 8) | (rdata[pos + 1] & 0xff);
+    }
+}
@@ -0,0 +1,105 @@
+package org.graylog.plugins.dnstap;
+
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+    Remembers recent RESOLVER_QUERY frames by question (name and type), so a
+    CLIENT_RESPONSE can tell whether the resolver went upstream for it while
+    the client was waiting.
+
+    Fixed set-associative table: a question lands in one bucket of a few
+    ways and replaces the oldest question there when the bucket is full.
+    The bucket remembers the newest time it evicted, a lookup that may have
+    lost its question to an eviction answers UNKNOWN rather than NONE.
+
+    Best-effort: frames are decoded in parallel and out of order, so the
+    query of a transaction may be recorded after its response is looked
+    up. NONE is only answered once a query newer than the response has
+    been recorded, or the response is older than a grace period.
+*/
+@Singleton
+public class ResolverQueryTracker {
+    private static final int BUCKETS = 1 << 14;
+    private static final int WAYS    = 4;
+    private static final int LOCKS   = 256;
+    private static final long GRACE_NSEC = TimeUnit.SECONDS.toNanos(2);
+
+    public enum Upstream {
+        QUERIED,
+        NONE,
+        UNKNOWN
+    }
+
+    private final long[] keys    = new long[BUCKETS * WAYS];
+    private final long[] times   = new long[BUCKETS * WAYS];
+    private final long[] evicted = new long[BUCKETS];
+    private final Object[] locks = new Object[LOCKS];
+    // Newest query recorded, how far decoding has got
+    private final AtomicLong latest = new AtomicLong();
+
+    public ResolverQueryTracker() {
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Records an upstream query of the question at the time in nanoseconds.
+     */
+    public void queried(final long key, final long timeNsec) {
+        final int bucket = bucket(key);
+        final int first  = bucket * WAYS;
+        latest.accumulateAndGet(timeNsec, Math::max);
+        synchronized (locks[bucket & (LOCKS - 1)]) {
+            int oldest = first;
+            for (int i = first; i < first + WAYS; i++) {
+                if (keys[i] == key && times[i] != 0) {
+                    times[i] = Math.max(times[i], timeNsec);
+                    return;
+                }
+                if (times[i] < times[oldest]) {
+                    oldest = i;
+                }
+            }
+            evicted[bucket] = Math.max(evicted[bucket], times[oldest]);
+            keys[oldest]  = key;
+            times[oldest] = timeNsec;
+        }
+    }
+
+    /**
+     * Tells whether the question was queried upstream between the two times
+     * in nanoseconds, {@code nowNsec} is the current time since the epoch.
+     */
+    public Upstream queriedBetween(final long key, final long fromNsec, final long toNsec, final long nowNsec) {
+        final Upstream upstream = lookup(key, fromNsec, toNsec);
+        if (upstream == Upstream.NONE && latest.get() < toNsec && nowNsec - toNsec < GRACE_NSEC) {
+            // Its query may still be waiting to be decoded
+            return Upstream.UNKNOWN;
+        }
+        return upstream;
+    }
+
+    private Upstream lookup(final long key, final long fromNsec, final long toNsec) {
+        final int bucket = bucket(key);
+        final int first  = bucket * WAYS;
+        synchronized (locks[bucket & (LOCKS - 1)]) {
+            for (int i = first; i < first + WAYS; i++) {
+                if (keys[i] == key && times[i] != 0) {
+                    if (times[i] > toNsec) {
+                        // A later query of the same question hides an earlier one
+                        return Upstream.UNKNOWN;
+                    }
+                    return (times[i] >= fromNsec) ? Upstream.QUERIED : Upstream.NONE;
+                }
+            }
+            return (evicted[bucket] >= fromNsec) ? Upstream.UNKNOWN : Upstream.NONE;
+        }
+    }
+
+    private static int bucket(final long key) {
+        return (int) (key ^ (key >>> 32)) & (BUCKETS - 1);
+    }
+}
@@ -0,0 +1,109 @@
+package org.graylog.plugins.dnstap;
+
+import javax.inject.Singleton;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+    Estimates the number of unique names seen under every registered domain
+    with HyperLogLog sketches kept in a fixed table.
+
+    Sketches are kept in 2-way buckets addressed by the registered domain
+    hash. A domain finding both ways owned by other domains takes over the
+    one with the lower estimate, so a busy domain keeps its sketch, and
+    gets no estimate for that name. Registers are updated without locks, a
+    racing update may be lost, which only lowers the estimate slightly.
+
+    The estimate of a sketch is cached and only recomputed when one of its
+    registers grows, which becomes rare once the sketch has seen a few
+    thousand names.
+*/
+@Singleton
+public class SubdomainCardinality {
+    private static final int SLOTS      = 4096;
+    private static final int WAYS       = 2;
+    private static final int PRECISION  = 10;
+    private static final int REGISTERS  = 1 << PRECISION;
+    private static final double ALPHA   = 0.7213 / (1 + 1.079 / REGISTERS);
+    private static final double[] POW2_NEG = new double[65];
+    static {
+        for (int i = 0; i < POW2_NEG.length; i++) {
+            POW2_NEG[i] = Math.pow(2, -i);
+        }
+    }
+
+    private final AtomicLongArray owners = new AtomicLongArray(SLOTS);
+    private final long[] estimates = new long[SLOTS];
+    private volatile byte[] registers;
+
+    /**
+     * Adds the name to the sketch of its domain and returns the estimated
+     * number of unique names of that domain, or -1 when the domain just
+     * took a slot over and its sketch has no history.
+     */
+    public long add(final long domainHash, final long nameHash) {
+        final byte[] regs = registers();
+        final int first = (int) (domainHash & (SLOTS - 1) & ~(WAYS - 1));
+        int slot = -1;
+        for (int way = first; way < first + WAYS; way++) {
+            final long owner = owners.get(way);
+            if (owner == domainHash) {
+                slot = way;
+                break;
+            }
+            if (owner == 0 && slot < 0 && owners.compareAndSet(way, 0, domainHash)) {
+                slot = way;
+            }
+        }
+        boolean takenOver = false;
+        if (slot < 0) {
+            // Both ways taken, the domain with the lower estimate makes room
+            slot = (estimates[first] < estimates[first + 1]) ? first : first + 1;
+            final long owner = owners.get(slot);
+            if (owners.compareAndSet(slot, owner, domainHash)) {
+                Arrays.fill(regs, slot * REGISTERS, (slot + 1) * REGISTERS, (byte) 0);
+                estimates[slot] = 0;
+            }
+            takenOver = true;
+        }
+        final int base = slot * REGISTERS;
+        final int index = (int) (nameHash >>> (64 - PRECISION));
+        final byte rank = (byte) (Long.numberOfLeadingZeros((nameHash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+        if (regs[base + index] < rank) {
+            regs[base + index] = rank;
+            estimates[slot] = estimate(regs, base);
+        }
+        return takenOver ? -1 : estimates[slot];
+    }
+
+    private static long estimate(final byte[] regs, final int base) {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = base; i < base + REGISTERS; i++) {
+            sum += POW2_NEG[regs[i]];
+            if (regs[i] == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // Linear counting for small cardinalities
+            return Math.round(REGISTERS * Math.log(REGISTERS / (double) zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    private byte[] registers() {
+        byte[] regs = registers;
+        if (regs == null) {
+            synchronized (this) {
+                regs = registers;
+                if (regs == null) {
+                    regs = new byte[SLOTS * REGISTERS];
+                    registers = regs;
+                }
+            }
+        }
+        return regs;
+    }
+}
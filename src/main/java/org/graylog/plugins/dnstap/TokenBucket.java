@@ -0,0 +1,62 @@
+package org.graylog.plugins.dnstap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+    Lock-free token bucket implemented as GCRA (generic cell rate algorithm).
+
+    The whole state is the theoretical arrival time of the next frame,
+    updated with a single CAS. A frame conforms if it does not arrive
+    earlier than the theoretical time minus the burst tolerance.
+*/
+public class TokenBucket {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrival;
+    private final LongSupplier nanoTime;
+
+    public TokenBucket(final int ratePerSecond, final int burst) {
+        this(ratePerSecond, burst, System::nanoTime);
+    }
+
+    TokenBucket(final int ratePerSecond, final int burst, final LongSupplier nanoTime) {
+        this.intervalNanos  = TimeUnit.SECONDS.toNanos(1) / Math.max(1, ratePerSecond);
+        this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        this.nanoTime       = nanoTime;
+        this.theoreticalArrival = new AtomicLong(nanoTime.getAsLong());
+    }
+
+    /**
+     * Takes a token if one is available.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            final long now  = nanoTime.getAsLong();
+            final long tat  = theoreticalArrival.get();
+            final long next = Math.max(tat, now) + intervalNanos;
+            if (next - now > toleranceNanos + intervalNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a token unconditionally and returns how many nanoseconds
+     * the caller should wait to get back within the rate, 0 if conforming.
+     */
+    public long acquire() {
+        while (true) {
+            final long now  = nanoTime.getAsLong();
+            final long tat  = theoreticalArrival.get();
+            final long next = Math.max(tat, now) + intervalNanos;
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return Math.max(0, next - now - toleranceNanos - intervalNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.graylog.plugins.dnstap;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.ByteString;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToLongFunction;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+    Latency histograms of upstream servers, keyed by the response address
+    of RESOLVER_RESPONSE frames.
+
+    Histograms are log-linear like HdrHistogram: 16 linear sub-buckets per
+    power of two of microseconds, so percentiles are within ~6% and one
+    histogram takes a fixed 3 KB. At most MAX_UPSTREAMS servers are kept,
+    servers seen while the table is full are only counted. At the end of
+    every interval idle servers are dropped, and if servers were turned
+    away the least busy tenth too, so the table converges to the top ones.
+
+    Percentiles of the last completed interval are exposed as gauges and
+    returned once per interval as summaries.
+*/
+@Singleton
+public class UpstreamLatencyTracker {
+    private static final int MAX_UPSTREAMS = 100;
+    private static final long INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final int SUB_BITS = 5;
+    private static final int HALF_SUB = 1 << (SUB_BITS - 1);
+    private static final long MAX_VALUE = TimeUnit.SECONDS.toMicros(120);
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final MetricRegistry metricRegistry;
+    private final ConcurrentMap<ByteString, Upstream> upstreams = new ConcurrentHashMap<>();
+    private final AtomicLong untracked = new AtomicLong();
+    private final AtomicLong nextSummary = new AtomicLong(System.currentTimeMillis() + INTERVAL_MILLIS);
+
+    @Inject
+    public UpstreamLatencyTracker(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        metricRegistry.register(name(DnstapCodec.class, "upstream", "untracked"), (Gauge<Long>) untracked::get);
+    }
+
+    public void record(final ByteString address, final long latencyUsec) {
+        Upstream upstream = upstreams.get(address);
+        if (upstream == null) {
+            if (upstreams.size() >= MAX_UPSTREAMS) {
+                untracked.incrementAndGet();
+                return;
+            }
+            final String formatted = Helper.prepareIpAddress(address);
+            if (formatted == null) {
+                return;
+            }
+            final Upstream fresh = new Upstream(address, formatted);
+            upstream = upstreams.putIfAbsent(address, fresh);
+            if (upstream == null) {
+                upstream = fresh;
+                registerGauges(upstream);
+            }
+        }
+        upstream.record(latencyUsec);
+    }
+
+    /**
+     * Completes the interval when it is over and returns its summaries,
+     * to exactly one caller. Otherwise returns an empty list.
+     */
+    public List<Summary> takeSummaries(final long nowMillis) {
+        final long next = nextSummary.get();
+        if (nowMillis < next || !nextSummary.compareAndSet(next, nowMillis + INTERVAL_MILLIS)) {
+            return Collections.emptyList();
+        }
+        final List<Summary> summaries = new ArrayList<>(upstreams.size());
+        for (Upstream upstream : upstreams.values()) {
+            final Summary summary = upstream.rotate();
+            if (summary.count > 0) {
+                summaries.add(summary);
+            }
+            else {
+                evict(upstream);
+            }
+        }
+        summaries.sort(Comparator.comparingLong((Summary s) -> s.count).reversed());
+        // Servers were turned away: make room by dropping the least busy tenth
+        if (untracked.getAndSet(0) > 0 && summaries.size() >= MAX_UPSTREAMS) {
+            for (Summary summary : summaries.subList(MAX_UPSTREAMS - MAX_UPSTREAMS / 10, summaries.size())) {
+                evict(upstreams.get(summary.key));
+            }
+        }
+        return summaries;
+    }
+
+    private void evict(final Upstream upstream) {
+        // Gauges first, a record() re-adding the server registers them again
+        if (upstream != null) {
+            removeGauges(upstream);
+            upstreams.remove(upstream.key, upstream);
+        }
+    }
+
+    private void registerGauges(final Upstream upstream) {
+        final String prefix = name(DnstapCodec.class, "upstream", upstream.address);
+        registerGauge(name(prefix, "p50") , upstream.key, s -> s.p50);
+        registerGauge(name(prefix, "p99") , upstream.key, s -> s.p99);
+        registerGauge(name(prefix, "p999"), upstream.key, s -> s.p999);
+    }
+
+    private void registerGauge(final String name, final ByteString key, final ToLongFunction<Summary> value) {
+        // Reads the current entry of the server, not the one it was registered for
+        final Gauge<Long> gauge = () -> {
+            final Upstream upstream = upstreams.get(key);
+            return (upstream != null) ? value.applyAsLong(upstream.last) : 0L;
+        };
+        try {
+            metricRegistry.register(name, gauge);
+        }
+        catch (IllegalArgumentException e) {
+            // Still registered for an evicted entry of the same server, which reads this one
+        }
+    }
+
+    private void removeGauges(final Upstream upstream) {
+        final String prefix = name(DnstapCodec.class, "upstream", upstream.address);
+        metricRegistry.remove(name(prefix, "p50"));
+        metricRegistry.remove(name(prefix, "p99"));
+        metricRegistry.remove(name(prefix, "p999"));
+    }
+
+    private static int index(final long value) {
+        final long v = Math.max(0, Math.min(value, MAX_VALUE));
+        if (v < 2 * HALF_SUB) {
+            return (int) v;
+        }
+        final int shift = (63 - Long.numberOfLeadingZeros(v)) - (SUB_BITS - 1);
+        return shift * HALF_SUB + (int) (v >>> shift);
+    }
+
+    // Middle of the bucket
+    private static long value(final int index) {
+        if (index < 2 * HALF_SUB) {
+            return index;
+        }
+        final int shift = index / HALF_SUB - 1;
+        final long lower = (long) (index % HALF_SUB + HALF_SUB) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+
+
+    private static class Upstream {
+        private final ByteString key;
+        private final String address;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private volatile Summary last;
+
+        private Upstream(final ByteString key, final String address) {
+            this.key     = key;
+            this.address = address;
+            this.last = new Summary(key, address, 0, 0, 0, 0, 0);
+        }
+
+        private void record(final long latencyUsec) {
+            buckets.incrementAndGet(index(latencyUsec));
+        }
+
+        private Summary rotate() {
+            final long[] counts = new long[BUCKETS];
+            long total = 0;
+            int highest = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.getAndSet(i, 0);
+                total += counts[i];
+                if (counts[i] > 0) {
+                    highest = i;
+                }
+            }
+            last = new Summary(key, address, total,
+                               percentile(counts, total, 0.5),
+                               percentile(counts, total, 0.99),
+                               percentile(counts, total, 0.999),
+                               value(highest));
+            return last;
+        }
+
+        private static long percentile(final long[] counts, final long total, final double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return value(i);
+                }
+            }
+            return value(counts.length - 1);
+        }
+    }
+
+    public static class Summary {
+        private final ByteString key;
+        public final String address;
+        public final long count;
+        public final long p50;
+        public final long p99;
+        public final long p999;
+        public final long max;
+
+        private Summary(final ByteString key,
+                        final String address,
+                        final long count,
+                        final long p50,
+                        final long p99,
+                        final long p999,
+                        final long max) {
+            this.key     = key;
+            this.address = address;
+            this.count   = count;
+            this.p50     = p50;
+            this.p99     = p99;
+            this.p999    = p999;
+            this.max     = max;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.graylog.plugins.dnstap;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+import org.graylog.plugins.dnstap.protos.DnstapOuterClass;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DnstapCodecAllocationTest {
+    private static final int WARMUP   = 5_000;
+    private static final int MESSAGES = 5_000;
+    // Bytes allocated per decoded message including the codec instance, about 10.1 KB with the
+    // default profile when written, just above what the codec before profiles allocated
+    private static final long BUDGET_PER_MESSAGE = 10_752;
+
+    private Configuration configuration;
+    private Singletons singletons;
+
+    @Before
+    public void setUp() {
+        configuration = new Configuration(ImmutableMap.<String, Object>of(
+            DnstapCodec.CK_DO_NOT_PUT_FULL_MESSAGE, true));
+        singletons = new Singletons();
+    }
+
+    /**
+     * Graylog builds the codec per raw message, so the test does too.
+     */
+    private Collection<Message> decode(final RawMessage raw) {
+        return singletons.newCodec(configuration).decodeMessages(raw);
+    }
+
+    @Test
+    public void decodesFixedFrames() throws Exception {
+        final Collection<Message> messages = decode(rawMessage(frame(0)));
+        assertEquals(1, messages.size());
+        final Message msg = messages.iterator().next();
+        assertEquals("host0.example.com.", msg.getField("dnstap_qname"));
+        assertEquals("CLIENT_RESPONSE", msg.getField("dnstap_type"));
+    }
+
+    @Test
+    public void allocationPerMessageStaysUnderBudget() throws Exception {
+        final RawMessage[] raw = new RawMessage[WARMUP + MESSAGES];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = rawMessage(frame(i % 64));
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            decode(raw[i]);
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        int decoded = 0;
+        for (int i = WARMUP; i < raw.length; i++) {
+            final Collection<Message> messages = decode(raw[i]);
+            decoded += (messages != null) ? messages.size() : 0;
+        }
+        final long perMessage = (threads.getThreadAllocatedBytes(threadId) - before) / MESSAGES;
+        assertEquals(MESSAGES, decoded);
+        assertTrue("Allocated " + perMessage + " bytes per message, budget " + BUDGET_PER_MESSAGE,
+                   perMessage <= BUDGET_PER_MESSAGE);
+    }
+
+    /**
+     * Node wide singletons the injector hands to every codec instance.
+     */
+    static class Singletons {
+        private final MetricRegistry metricRegistry = new MetricRegistry();
+        private final DnstapCodecSettings.Registry settings = new DnstapCodecSettings.Registry(
+            new PassiveDnsStore.Registry(), new ErrorStormDetector.Registry(), new GeoIpLookup.Registry(),
+            new QueryAddressMasker.Registry(), new FieldProfile.Registry());
+        private final DnstapCodecMetrics metrics = new DnstapCodecMetrics(metricRegistry);
+        private final ParseErrorReporter errorReporter = new ParseErrorReporter(metricRegistry);
+        private final DnstapIdentityCache identities = new DnstapIdentityCache(metricRegistry);
+        private final ClientRateTracker clientRates = new ClientRateTracker();
+        private final SubdomainCardinality subdomains = new SubdomainCardinality();
+        private final ResolverQueryTracker resolverQueries = new ResolverQueryTracker();
+        private final UpstreamLatencyTracker upstreamLatency = new UpstreamLatencyTracker(metricRegistry);
+
+        DnstapCodec newCodec(final Configuration configuration) {
+            return new DnstapCodec(configuration, settings, metrics, errorReporter, identities, clientRates,
+                                   subdomains, resolverQueries, upstreamLatency);
+        }
+    }
+
+    static RawMessage rawMessage(final byte[] payload) {
+        return new RawMessage(payload, new InetSocketAddress(InetAddress.getLoopbackAddress(), 40000));
+    }
+
+    /**
+     * CLIENT_RESPONSE frame of an A query for hostN.example.com. with two answers.
+     */
+    static byte[] frame(final int n) throws Exception {
+        final Name name = Name.fromString("host" + n + ".example.com.");
+        final org.xbill.DNS.Message dns = org.xbill.DNS.Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        dns.getHeader().setFlag(Flags.QR);
+        dns.getHeader().setFlag(Flags.RA);
+        dns.addRecord(new ARecord(name, DClass.IN, 300, InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) n})), Section.ANSWER);
+        dns.addRecord(new ARecord(name, DClass.IN, 300, InetAddress.getByAddress(new byte[]{10, 0, 1, (byte) n})), Section.ANSWER);
+        final DnstapOuterClass.Message message = DnstapOuterClass.Message.newBuilder()
+            .setType(DnstapOuterClass.Message.Type.CLIENT_RESPONSE)
+            .setSocketFamily(DnstapOuterClass.SocketFamily.INET)
+            .setSocketProtocol(DnstapOuterClass.SocketProtocol.UDP)
+            .setQueryAddress(ByteString.copyFrom(new byte[]{(byte) 192, 0, 2, (byte) n}))
+            .setQueryPort(50000 + n)
+            .setQueryTimeSec(1_500_000_000L)
+            .setQueryTimeNsec(1_000)
+            .setResponseTimeSec(1_500_000_000L)
+            .setResponseTimeNsec(350_000)
+            .setResponseMessage(ByteString.copyFrom(dns.toWire()))
+            .build();
+        return DnstapOuterClass.Dnstap.newBuilder()
+            .setType(DnstapOuterClass.Dnstap.Type.MESSAGE)
+            .setIdentity(ByteString.copyFromUtf8("resolver1"))
+            .setMessage(message)
+            .build()
+            .toByteArray();
+    }
+}
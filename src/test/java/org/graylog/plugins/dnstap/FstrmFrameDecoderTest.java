@@ -0,0 +1,164 @@
+package org.graylog.plugins.dnstap;
+
+import com.codahale.metrics.MetricRegistry;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FstrmFrameDecoderTest {
+    private static final int ACCEPT = 0x01;
+    private static final int START  = 0x02;
+    private static final int STOP   = 0x03;
+    private static final int READY  = 0x04;
+    private static final int FINISH = 0x05;
+    private static final String DNSTAP = "protobuf:dnstap.Dnstap";
+
+    private DecoderEmbedder<ChannelBuffer> embedder;
+
+    @Before
+    public void setUp() {
+        final FstrmFrameDecoder decoder = new FstrmFrameDecoder(new FrameRecorderRegistry(), 0, 0, 1024, 64 * 1024,
+                                                                new FstrmMetrics(new MetricRegistry()), null, 0);
+        embedder = new DecoderEmbedder<>(decoder);
+    }
+
+    private static ChannelBuffer control(final int type, final String... contentTypes) {
+        final ChannelBuffer fields = ChannelBuffers.dynamicBuffer();
+        for (String contentType : contentTypes) {
+            final byte[] bytes = contentType.getBytes(StandardCharsets.US_ASCII);
+            fields.writeInt(0x01);
+            fields.writeInt(bytes.length);
+            fields.writeBytes(bytes);
+        }
+        final ChannelBuffer frame = ChannelBuffers.dynamicBuffer();
+        frame.writeInt(0);
+        frame.writeInt(4 + fields.readableBytes());
+        frame.writeInt(type);
+        frame.writeBytes(fields);
+        return frame;
+    }
+
+    private static ChannelBuffer data(final String payload) {
+        final byte[] bytes = payload.getBytes(StandardCharsets.US_ASCII);
+        final ChannelBuffer frame = ChannelBuffers.buffer(4 + bytes.length);
+        frame.writeInt(bytes.length);
+        frame.writeBytes(bytes);
+        return frame;
+    }
+
+    private static String string(final ChannelBuffer buffer) {
+        return buffer.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Control type of a frame written back to the writer.
+     */
+    private static int controlType(final ChannelBuffer frame) {
+        assertEquals(0, frame.readInt());
+        frame.readInt();
+        return frame.readInt();
+    }
+
+    @Test
+    public void bidirectionalHandshake() {
+        embedder.offer(control(READY, DNSTAP));
+        assertEquals(ACCEPT, controlType(embedder.poll()));
+        embedder.offer(control(START, DNSTAP));
+        embedder.offer(data("one"));
+        embedder.offer(data("two"));
+        assertEquals("one", string(embedder.poll()));
+        assertEquals("two", string(embedder.poll()));
+        embedder.offer(control(STOP));
+        assertEquals(FINISH, controlType(embedder.poll()));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void unidirectionalStart() {
+        embedder.offer(control(START, DNSTAP));
+        embedder.offer(data("one"));
+        assertEquals("one", string(embedder.poll()));
+    }
+
+    @Test
+    public void framesSplitAcrossReads() {
+        final ChannelBuffer stream = ChannelBuffers.dynamicBuffer();
+        stream.writeBytes(control(START));
+        stream.writeBytes(data("first"));
+        stream.writeBytes(data("second"));
+        while (stream.readable()) {
+            embedder.offer(stream.readBytes(Math.min(3, stream.readableBytes())));
+        }
+        assertEquals("first", string(embedder.poll()));
+        assertEquals("second", string(embedder.poll()));
+    }
+
+    @Test
+    public void dataBeforeStartIsRejected() {
+        embedder.offer(data("early"));
+        embedder.offer(control(START, DNSTAP));
+        embedder.offer(data("late"));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void readyWithoutDnstapIsNotAccepted() {
+        embedder.offer(control(READY, "protobuf:other"));
+        assertNull(embedder.poll());
+        embedder.offer(control(START));
+        embedder.offer(data("one"));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void startWithOtherContentTypeIsRejected() {
+        embedder.offer(control(START, "protobuf:other"));
+        embedder.offer(data("one"));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void secondReadyIsRejected() {
+        embedder.offer(control(READY, DNSTAP));
+        assertEquals(ACCEPT, controlType(embedder.poll()));
+        embedder.offer(control(READY, DNSTAP));
+        embedder.offer(control(START, DNSTAP));
+        embedder.offer(data("one"));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void stopBeforeStartIsRejected() {
+        embedder.offer(control(STOP));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void nothingIsDecodedAfterStop() {
+        embedder.offer(control(START));
+        embedder.offer(control(STOP));
+        // Unidirectional, no FINISH
+        assertNull(embedder.poll());
+        embedder.offer(data("after"));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void oversizedFrameIsSkipped() {
+        embedder.offer(control(START));
+        final ChannelBuffer big = ChannelBuffers.buffer(4 + 2000);
+        big.writeInt(2000);
+        big.writeZero(2000);
+        embedder.offer(big.readBytes(1000));
+        embedder.offer(big);
+        embedder.offer(data("next"));
+        assertEquals("next", string(embedder.poll()));
+    }
+}
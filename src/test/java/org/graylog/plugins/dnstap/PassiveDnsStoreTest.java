@@ -0,0 +1,123 @@
+package org.graylog.plugins.dnstap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PassiveDnsStoreTest {
+    private static final int TTL             = 3600;
+    private static final int UPDATE_INTERVAL = 60;
+    // Smallest store: one probe sequence of 16 slots per segment
+    private static final int SLOTS           = 16;
+
+    private long now;
+    private PassiveDnsStore store;
+
+    @Before
+    public void setUp() {
+        now = System.currentTimeMillis() / 1000;
+        store = new PassiveDnsStore(0, TTL, UPDATE_INTERVAL);
+    }
+
+    /**
+     * Hash of the first segment whose probe sequence starts at the slot.
+     */
+    private static long hash(final int startSlot, final int n) {
+        return (long) n * SLOTS + startSlot;
+    }
+
+    @Test
+    public void firstObservationIsFirstSeen() {
+        final PassiveDnsStore.Observation seen = store.observe(hash(0, 1), now);
+        assertNotNull(seen);
+        assertTrue(seen.firstSeen);
+        assertEquals(now, seen.firstSeenSec);
+        assertEquals(now, seen.lastSeenSec);
+        assertEquals(1, seen.count);
+    }
+
+    @Test
+    public void repeatWithinUpdateIntervalIsSuppressed() {
+        store.observe(hash(0, 1), now);
+        assertNull(store.observe(hash(0, 1), now + 1));
+        assertNull(store.observe(hash(0, 1), now + UPDATE_INTERVAL - 1));
+    }
+
+    @Test
+    public void repeatAfterUpdateIntervalIsUpdate() {
+        store.observe(hash(0, 1), now);
+        store.observe(hash(0, 1), now + 1);
+        final PassiveDnsStore.Observation seen = store.observe(hash(0, 1), now + UPDATE_INTERVAL);
+        assertNotNull(seen);
+        assertFalse(seen.firstSeen);
+        assertEquals(now, seen.firstSeenSec);
+        assertEquals(now + UPDATE_INTERVAL, seen.lastSeenSec);
+        assertEquals(3, seen.count);
+        // Reported again only after another interval
+        assertNull(store.observe(hash(0, 1), now + UPDATE_INTERVAL + 1));
+    }
+
+    @Test
+    public void noUpdatesWhenIntervalIsZero() {
+        store = new PassiveDnsStore(0, TTL, 0);
+        store.observe(hash(0, 1), now);
+        assertNull(store.observe(hash(0, 1), now + TTL));
+    }
+
+    @Test
+    public void expiredTupleIsFirstSeenAgain() {
+        store.observe(hash(0, 1), now);
+        final PassiveDnsStore.Observation seen = store.observe(hash(0, 1), now + TTL + 1);
+        assertNotNull(seen);
+        assertTrue(seen.firstSeen);
+        assertEquals(now + TTL + 1, seen.firstSeenSec);
+        assertEquals(1, seen.count);
+    }
+
+    @Test
+    public void zeroHashIsStored() {
+        assertTrue(store.observe(0, now).firstSeen);
+        assertNull(store.observe(0, now + 1));
+    }
+
+    @Test
+    public void probeSequenceWrapsAroundSegmentEnd() {
+        // Starts at the last slot, the following ones are at the segment start
+        for (int n = 1; n <= SLOTS; n++) {
+            assertTrue(store.observe(hash(SLOTS - 1, n), now).firstSeen);
+        }
+        for (int n = 1; n <= SLOTS; n++) {
+            assertNull(store.observe(hash(SLOTS - 1, n), now + 1));
+        }
+        assertEquals(0, store.getEvictions());
+    }
+
+    @Test
+    public void fullProbeSequenceEvictsLeastRecentlySeen() {
+        for (int n = 1; n <= SLOTS; n++) {
+            store.observe(hash(0, n), now + n);
+        }
+        // All but the first are seen again later
+        for (int n = 2; n <= SLOTS; n++) {
+            store.observe(hash(0, n), now + SLOTS + n);
+        }
+        assertTrue(store.observe(hash(0, SLOTS + 1), now + 2 * SLOTS + 1).firstSeen);
+        assertEquals(1, store.getEvictions());
+        assertNull(store.observe(hash(0, 2), now + 2 * SLOTS + 2));
+        assertTrue(store.observe(hash(0, 1), now + 2 * SLOTS + 3).firstSeen);
+    }
+
+    @Test
+    public void expiredVictimIsNotCountedAsEviction() {
+        for (int n = 1; n <= SLOTS; n++) {
+            store.observe(hash(0, n), now);
+        }
+        assertTrue(store.observe(hash(0, SLOTS + 1), now + TTL + 1).firstSeen);
+        assertEquals(0, store.getEvictions());
+    }
+}
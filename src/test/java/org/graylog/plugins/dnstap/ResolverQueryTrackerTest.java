@@ -0,0 +1,56 @@
+package org.graylog.plugins.dnstap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResolverQueryTrackerTest {
+    private static final long KEY   = 42;
+    private static final long OTHER = 43;
+    private static final long WAIT  = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private long now;
+    private ResolverQueryTracker tracker;
+
+    @Before
+    public void setUp() {
+        now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        tracker = new ResolverQueryTracker();
+    }
+
+    @Test
+    public void queryWhileClientWaitedIsQueried() {
+        tracker.queried(KEY, now - WAIT / 2);
+        assertEquals(ResolverQueryTracker.Upstream.QUERIED, tracker.queriedBetween(KEY, now - WAIT, now, now));
+    }
+
+    @Test
+    public void responseDecodedBeforeItsQueryIsUnknown() {
+        // Another decoder thread has not recorded the query yet
+        assertEquals(ResolverQueryTracker.Upstream.UNKNOWN, tracker.queriedBetween(KEY, now - WAIT, now, now));
+        tracker.queried(KEY, now - WAIT / 2);
+        assertEquals(ResolverQueryTracker.Upstream.QUERIED, tracker.queriedBetween(KEY, now - WAIT, now, now));
+    }
+
+    @Test
+    public void noQueryIsNoneOnceNewerQueriesAreRecorded() {
+        tracker.queried(OTHER, now + 1);
+        assertEquals(ResolverQueryTracker.Upstream.NONE, tracker.queriedBetween(KEY, now - WAIT, now, now));
+    }
+
+    @Test
+    public void noQueryIsNoneAfterGracePeriod() {
+        final long later = now + TimeUnit.SECONDS.toNanos(5);
+        assertEquals(ResolverQueryTracker.Upstream.NONE, tracker.queriedBetween(KEY, now - WAIT, now, later));
+    }
+
+    @Test
+    public void queryBeforeClientQueryIsNone() {
+        tracker.queried(KEY, now - 2 * WAIT);
+        tracker.queried(OTHER, now + 1);
+        assertEquals(ResolverQueryTracker.Upstream.NONE, tracker.queriedBetween(KEY, now - WAIT, now, now));
+    }
+}
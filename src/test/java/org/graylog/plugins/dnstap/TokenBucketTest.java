@@ -0,0 +1,75 @@
+package org.graylog.plugins.dnstap;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    // 100 ms per token
+    private static final int RATE = 10;
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // Fake clock, only moves when the test says so
+    private long now = 1_000_000_000L;
+
+    private TokenBucket bucket(final int burst) {
+        return new TokenBucket(RATE, burst, () -> now);
+    }
+
+    @Test
+    public void burstIsAvailableAtOnce() {
+        final TokenBucket bucket = bucket(5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire());
+        }
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void burstOfZeroAllowsOne() {
+        final TokenBucket bucket = bucket(0);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void tokensRefillAtRate() {
+        final TokenBucket bucket = bucket(2);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        now += INTERVAL - 1;
+        assertFalse(bucket.tryAcquire());
+        now += 1;
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void rejectedAttemptsTakeNoToken() {
+        final TokenBucket bucket = bucket(1);
+        assertTrue(bucket.tryAcquire());
+        for (int i = 0; i < 100; i++) {
+            assertFalse(bucket.tryAcquire());
+        }
+        now += INTERVAL;
+        assertTrue(bucket.tryAcquire());
+    }
+
+    @Test
+    public void acquireReturnsWaitOnceOverRate() {
+        final TokenBucket bucket = bucket(2);
+        assertEquals(0, bucket.acquire());
+        assertEquals(0, bucket.acquire());
+        assertEquals(INTERVAL, bucket.acquire());
+        // Every further token adds one interval
+        assertEquals(2 * INTERVAL, bucket.acquire());
+        assertFalse(bucket.tryAcquire());
+        now += 3 * INTERVAL;
+        assertTrue(bucket.tryAcquire());
+    }
+}